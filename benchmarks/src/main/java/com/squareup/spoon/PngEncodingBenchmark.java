@@ -0,0 +1,56 @@
+package com.squareup.spoon;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/** PNG encoding of converted screenshots as done by {@link ScreenshotWriter}. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PngEncodingBenchmark {
+
+	@Param({"720x1280", "1080x1920", "1440x2560"})
+	public String resolution;
+
+	/** {@code noise} is the worst case for the compression, {@code flat} resembles a real screen. */
+	@Param({"noise", "flat"})
+	public String content;
+
+	private BufferedImage image;
+	private ByteArrayOutputStream output;
+
+	@Setup
+	public void setUp() {
+		String[] size = resolution.split("x");
+		int width = Integer.parseInt(size[0]);
+		int height = Integer.parseInt(size[1]);
+		image = new RawImageConverter().convert(RawImageConversionBenchmark.rawImage(width, height, 32));
+		if ("flat".equals(content)) {
+			// Horizontal bars of solid colors, like list items of an application screen.
+			int[] row = new int[width];
+			for (int y = 0; y < height; y++) {
+				int color = 0xff000000 | ((y / 96) * 0x1f3d5b & 0xffffff);
+				Arrays.fill(row, color);
+				image.setRGB(0, y, width, 1, row, 0, width);
+			}
+		}
+		output = new ByteArrayOutputStream(width * height * 4);
+	}
+
+	@Benchmark
+	public int encode() throws IOException {
+		output.reset();
+		ImageIO.write(image, "png", output);
+		return output.size();
+	}
+
+}
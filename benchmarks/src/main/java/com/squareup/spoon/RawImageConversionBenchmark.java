@@ -0,0 +1,84 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.RawImage;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Compares per pixel framebuffer conversion with {@link RawImageConverter}. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RawImageConversionBenchmark {
+
+	@Param({"720x1280", "1080x1920", "1440x2560"})
+	public String resolution;
+
+	/** 32 for RGBA_8888, 16 for RGB_565. */
+	@Param({"32", "16"})
+	public int bpp;
+
+	private RawImage screenshot;
+	private RawImageConverter converter;
+
+	@Setup
+	public void setUp() {
+		String[] size = resolution.split("x");
+		screenshot = rawImage(Integer.parseInt(size[0]), Integer.parseInt(size[1]), bpp);
+		converter = new RawImageConverter();
+	}
+
+	static RawImage rawImage(int width, int height, int bpp) {
+		RawImage image = new RawImage();
+		image.width = width;
+		image.height = height;
+		image.bpp = bpp;
+		image.size = width * height * (bpp >> 3);
+		image.data = new byte[image.size];
+		new Random(42).nextBytes(image.data);
+		if (bpp == 32) {
+			image.red_offset = 0;
+			image.red_length = 8;
+			image.green_offset = 8;
+			image.green_length = 8;
+			image.blue_offset = 16;
+			image.blue_length = 8;
+			image.alpha_offset = 24;
+			image.alpha_length = 8;
+		} else {
+			image.red_offset = 11;
+			image.red_length = 5;
+			image.green_offset = 5;
+			image.green_length = 6;
+			image.blue_offset = 0;
+			image.blue_length = 5;
+		}
+		return image;
+	}
+
+	/** The loop {@link IncrementalSpoonDeviceRunner} used before. */
+	@Benchmark
+	public BufferedImage perPixel() {
+		BufferedImage image = new BufferedImage(screenshot.width, screenshot.height, BufferedImage.TYPE_INT_ARGB);
+		int index = 0;
+		int bytesPerPixel = screenshot.bpp >> 3;
+		for (int y = 0; y < screenshot.height; y++) {
+			for (int x = 0; x < screenshot.width; x++) {
+				image.setRGB(x, y, screenshot.getARGB(index) | 0xff000000);
+				index += bytesPerPixel;
+			}
+		}
+		return image;
+	}
+
+	@Benchmark
+	public BufferedImage bulk() {
+		return converter.convert(screenshot);
+	}
+
+}
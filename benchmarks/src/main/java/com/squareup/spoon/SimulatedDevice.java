@@ -0,0 +1,402 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.RawImage;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.Futures;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Device without hardware behind it, for measuring the runner on a plain machine.
+ * Instrumentation runs produce the output {@code am instrument -r} would, with the test durations and failures
+ * given by the {@link Script}. Installation, data clearing, process stopping and screenshots take the scripted time,
+ * messages of the running tests are sent to the log readers which accept them by the logcat filterspec.
+ * Every instrumentation run is a new application process, listed by {@code ps} while it runs.
+ * The device is a {@link Proxy} of {@link IDevice}, so it does not depend on the methods of a particular
+ * ddmlib version. Methods it does not know return {@code null}, {@code false} or {@code 0}.
+ */
+final class SimulatedDevice implements InvocationHandler {
+	private static final String LINE_END = "\r\n";
+	/** Priorities in logcat order, the application messages cycle through them. */
+	private static final String PRIORITIES = "VDIWEA";
+	/** Process writing the messages of the other applications. */
+	private static final int SYSTEM_PID = 500;
+
+	/** Behaviour of the simulated devices, all the times are in milliseconds. */
+	static final class Script {
+		long testDuration = 10;
+		/** Every n-th test fails, 0 for none. */
+		int failEvery;
+		/** Number of application log messages written by every test. */
+		int logMessagesPerTest = 20;
+		/** Number of messages of the other processes written while every test runs. */
+		int otherMessagesPerTest;
+		long installTime = 1000;
+		long pushTime = 200;
+		long clearDataTime = 300;
+		long forceStopTime = 100;
+		long screenshotTime = 50;
+		int screenWidth = 480;
+		int screenHeight = 800;
+		/** Test methods of the classes run as a whole. */
+		final Map<String, List<String>> classes = new HashMap<String, List<String>>();
+		/** Behaviour of particular tests by {@code className#methodName}, overriding the common one. */
+		final Map<String, Outcome> tests = new HashMap<String, Outcome>();
+
+		Script setTestDuration(long testDuration) {
+			this.testDuration = testDuration;
+			return this;
+		}
+
+		Script setFailEvery(int failEvery) {
+			this.failEvery = failEvery;
+			return this;
+		}
+
+		Script setLogMessagesPerTest(int logMessagesPerTest) {
+			this.logMessagesPerTest = logMessagesPerTest;
+			return this;
+		}
+
+		Script setOtherMessagesPerTest(int otherMessagesPerTest) {
+			this.otherMessagesPerTest = otherMessagesPerTest;
+			return this;
+		}
+
+		Script setInstallTime(long installTime) {
+			this.installTime = installTime;
+			return this;
+		}
+
+		Script setPushTime(long pushTime) {
+			this.pushTime = pushTime;
+			return this;
+		}
+
+		Script setClearDataTime(long clearDataTime) {
+			this.clearDataTime = clearDataTime;
+			return this;
+		}
+
+		Script setForceStopTime(long forceStopTime) {
+			this.forceStopTime = forceStopTime;
+			return this;
+		}
+
+		Script setScreenshotTime(long screenshotTime) {
+			this.screenshotTime = screenshotTime;
+			return this;
+		}
+
+		Script setScreenSize(int width, int height) {
+			this.screenWidth = width;
+			this.screenHeight = height;
+			return this;
+		}
+
+		Script addClass(String className, List<String> methods) {
+			classes.put(className, methods);
+			return this;
+		}
+
+		/**
+		 * @param test test in {@code className#methodName} format
+		 * @param failed whether the test always fails, {@link #failEvery} is not applied to it
+		 */
+		Script setTest(String test, long duration, boolean failed) {
+			tests.put(test, new Outcome(duration, failed));
+			return this;
+		}
+	}
+
+	/** Scripted duration and result of a single test. */
+	static final class Outcome {
+		final long duration;
+		final boolean failed;
+
+		Outcome(long duration, boolean failed) {
+			this.duration = duration;
+			this.failed = failed;
+		}
+	}
+
+	private final String serial;
+	private final Script script;
+	private final String applicationPackage;
+	private final Map<String, String> properties = new HashMap<String, String>();
+	/** Log readers with the minimum priorities of the tags they read, {@code *} is the default tag. */
+	private final Map<IShellOutputReceiver, Map<String, Integer>> logReaders =
+			new ConcurrentHashMap<IShellOutputReceiver, Map<String, Integer>>();
+	private final RawImage screenshot;
+	private int testCount;
+	/** Process of the running instrumentation, 0 when the tests are not running. */
+	private volatile int applicationPid;
+	private int lastPid = 1000;
+
+	private SimulatedDevice(String serial, Script script, String applicationPackage) {
+		this.serial = serial;
+		this.script = script;
+		this.applicationPackage = applicationPackage;
+		properties.put("ro.product.manufacturer", "Spoon");
+		properties.put("ro.product.model", "Simulated");
+		properties.put("ro.build.version.release", "6.0");
+		properties.put("ro.build.version.sdk", "23");
+		properties.put("ro.product.locale.language", "en");
+		properties.put("ro.product.locale.region", "US");
+		screenshot = screenshot(script.screenWidth, script.screenHeight);
+	}
+
+	/**
+	 * @param applicationPackage package the log messages of the tests are attributed to
+	 */
+	static IDevice create(String serial, Script script, String applicationPackage) {
+		return (IDevice) Proxy.newProxyInstance(SimulatedDevice.class.getClassLoader(), new Class<?>[] {IDevice.class},
+				new SimulatedDevice(serial, script, applicationPackage));
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if (name.equals("executeShellCommand")) {
+			shell((String) args[0], (IShellOutputReceiver) args[1]);
+			return null;
+		}
+		if (name.equals("getSerialNumber") || name.equals("getName") || name.equals("toString")) {
+			return serial;
+		}
+		if (name.equals("getProperty") || name.equals("getPropertySync") || name.equals("getPropertyCacheOrSync")) {
+			return properties.get((String) args[0]);
+		}
+		if (name.equals("getSystemProperty")) {
+			return Futures.immediateFuture(properties.get((String) args[0]));
+		}
+		if (name.equals("getProperties")) {
+			return Collections.unmodifiableMap(properties);
+		}
+		if (name.equals("isOnline") || name.equals("isEmulator")) {
+			return true;
+		}
+		if (name.equals("getAvdName")) {
+			return "simulated";
+		}
+		if (name.equals("getState")) {
+			return IDevice.DeviceState.ONLINE;
+		}
+		if (name.equals("getClientName")) {
+			return applicationPackage;
+		}
+		if (name.equals("installPackage") || name.equals("installRemotePackage")) {
+			Thread.sleep(script.installTime);
+			return null;
+		}
+		if (name.equals("syncPackageToDevice")) {
+			Thread.sleep(script.pushTime);
+			return "/data/local/tmp/" + new File((String) args[0]).getName();
+		}
+		if (name.equals("pushFile")) {
+			Thread.sleep(script.pushTime);
+			return null;
+		}
+		if (name.equals("getScreenshot")) {
+			Thread.sleep(script.screenshotTime);
+			return screenshot;
+		}
+		if (name.equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		}
+		if (name.equals("equals")) {
+			return proxy == args[0];
+		}
+		return defaultValue(method.getReturnType());
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return false;
+		}
+		if (type == int.class) {
+			return 0;
+		}
+		if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+
+	private void shell(String command, IShellOutputReceiver receiver) throws InterruptedException {
+		if (command.startsWith("am instrument")) {
+			instrument(command, receiver);
+		} else if (command.startsWith("logcat")) {
+			// Messages are written by the instrumentation thread until the reader is cancelled.
+			logReaders.put(receiver, filterSpec(command));
+			while (!receiver.isCancelled()) {
+				Thread.sleep(10);
+			}
+			logReaders.remove(receiver);
+		} else if (command.startsWith("pm clear")) {
+			Thread.sleep(script.clearDataTime);
+			write(receiver, "Success" + LINE_END);
+		} else if (command.startsWith("am force-stop")) {
+			Thread.sleep(script.forceStopTime);
+		} else if (command.startsWith("ps")) {
+			write(receiver, "USER     PID   PPID  VSIZE  RSS     WCHAN    PC        NAME" + LINE_END);
+			write(receiver, "system   " + SYSTEM_PID + "   1     0      0       0        0         system_server" + LINE_END);
+			if (applicationPid != 0) {
+				write(receiver, "u0_a1    " + applicationPid + "  " + SYSTEM_PID + "   0      0       0        0         "
+						+ applicationPackage + LINE_END);
+			}
+		}
+		// Other commands succeed without output: files do not exist, packages are not installed.
+		receiver.flush();
+	}
+
+	/** Run the tests passed with {@code -e class}, every test takes the scripted time. */
+	private void instrument(String command, IShellOutputReceiver receiver) throws InterruptedException {
+		List<String[]> tests = new ArrayList<String[]>();
+		String[] arguments = command.split("\\s+");
+		for (int i = 0; i < arguments.length - 2; i++) {
+			if (arguments[i].equals("-e") && arguments[i + 1].equals("class")) {
+				for (String test : arguments[i + 2].replace("'", "").replace("\"", "").split(",")) {
+					String[] parts = test.split("#", 2);
+					if (parts.length == 2) {
+						tests.add(parts);
+					} else if (script.classes.containsKey(parts[0])) {
+						for (String methodName : script.classes.get(parts[0])) {
+							tests.add(new String[] {parts[0], methodName});
+						}
+					}
+				}
+			}
+		}
+
+		long start = System.currentTimeMillis();
+		int failures = 0;
+		int pid;
+		synchronized (this) {
+			pid = ++lastPid;
+		}
+		applicationPid = pid;
+		for (int i = 0; i < tests.size(); i++) {
+			String className = tests.get(i)[0];
+			String methodName = tests.get(i)[1];
+			String status = status(className, methodName, i + 1, tests.size());
+			write(receiver, status + "INSTRUMENTATION_STATUS_CODE: 1" + LINE_END);
+			log(pid, 'I', "TestRunner", "started: " + methodName + "(" + className + ")");
+			for (int j = 0; j < script.logMessagesPerTest; j++) {
+				log(pid, PRIORITIES.charAt(j % PRIORITIES.length()), "SimulatedApp",
+						"Message " + j + " of " + className + "#" + methodName);
+			}
+			for (int j = 0; j < script.otherMessagesPerTest; j++) {
+				log(SYSTEM_PID, 'I', "SimulatedSystem", "Message " + j + " of another process");
+			}
+			Outcome outcome = script.tests.get(className + "#" + methodName);
+			Thread.sleep(outcome != null ? outcome.duration : script.testDuration);
+			boolean failed;
+			synchronized (this) {
+				testCount++;
+				failed = outcome != null ? outcome.failed : script.failEvery > 0 && testCount % script.failEvery == 0;
+			}
+			log(pid, 'I', "TestRunner", "finished: " + methodName + "(" + className + ")");
+			if (failed) {
+				failures++;
+				write(receiver, status + "INSTRUMENTATION_STATUS: stack=junit.framework.AssertionFailedError: "
+						+ "simulated failure" + LINE_END + "INSTRUMENTATION_STATUS_CODE: -2" + LINE_END);
+			} else {
+				write(receiver, status + "INSTRUMENTATION_STATUS_CODE: 0" + LINE_END);
+			}
+		}
+		applicationPid = 0;
+		String summary = failures > 0 ? "FAILURES!!!" + LINE_END + "Tests run: " + tests.size() + ",  Failures: "
+				+ failures + ",  Errors: 0" : "OK (" + tests.size() + " tests)";
+		write(receiver, "INSTRUMENTATION_RESULT: stream=" + LINE_END
+				+ "Time: " + (System.currentTimeMillis() - start) / 1000.0 + LINE_END
+				+ LINE_END
+				+ summary + LINE_END
+				+ LINE_END
+				+ "INSTRUMENTATION_CODE: -1" + LINE_END);
+	}
+
+	private static String status(String className, String methodName, int current, int total) {
+		return "INSTRUMENTATION_STATUS: id=InstrumentationTestRunner" + LINE_END
+				+ "INSTRUMENTATION_STATUS: current=" + current + LINE_END
+				+ "INSTRUMENTATION_STATUS: class=" + className + LINE_END
+				+ "INSTRUMENTATION_STATUS: stream=" + LINE_END
+				+ "INSTRUMENTATION_STATUS: numtests=" + total + LINE_END
+				+ "INSTRUMENTATION_STATUS: test=" + methodName + LINE_END;
+	}
+
+	/** Send a message in {@code logcat -v long} format to the log readers accepting it. */
+	private void log(int pid, char priority, String tag, String message) {
+		String entry = String.format(Locale.US, "[ 01-01 00:00:00.%03d %5d:%5d %s/%s ]%s%s%s%s",
+				System.currentTimeMillis() % 1000, pid, pid, priority, tag, LINE_END, message, LINE_END, LINE_END);
+		for (Map.Entry<IShellOutputReceiver, Map<String, Integer>> reader : logReaders.entrySet()) {
+			Map<String, Integer> spec = reader.getValue();
+			Integer minimum = spec.containsKey(tag) ? spec.get(tag) : spec.get("*");
+			if (minimum == null || PRIORITIES.indexOf(priority) >= minimum) {
+				write(reader.getKey(), entry);
+			}
+		}
+	}
+
+	/**
+	 * Minimum priorities by tag from the {@code tag:priority} arguments of the logcat command.
+	 * Silent priority {@code S} is after all the others.
+	 */
+	private static Map<String, Integer> filterSpec(String command) {
+		Map<String, Integer> spec = new HashMap<String, Integer>();
+		for (String argument : command.split("\\s+")) {
+			int colon = argument.lastIndexOf(':');
+			if (colon > 0 && colon == argument.length() - 2) {
+				char priority = argument.charAt(colon + 1);
+				int index = PRIORITIES.indexOf(priority);
+				spec.put(argument.substring(0, colon), index >= 0 ? index : PRIORITIES.length());
+			}
+		}
+		return spec;
+	}
+
+	private static void write(IShellOutputReceiver receiver, String output) {
+		byte[] bytes = output.getBytes(Charsets.UTF_8);
+		// Log readers are written by the instrumentation thread while waiting in another one.
+		synchronized (receiver) {
+			receiver.addOutput(bytes, 0, bytes.length);
+		}
+	}
+
+	/** Frame of horizontal bars, compressed like a real screen. */
+	private static RawImage screenshot(int width, int height) {
+		RawImage image = new RawImage();
+		image.width = width;
+		image.height = height;
+		image.bpp = 32;
+		image.size = width * height * 4;
+		image.data = new byte[image.size];
+		for (int y = 0; y < height; y++) {
+			byte shade = (byte) (y / 48 * 40);
+			for (int x = 0; x < width; x++) {
+				int index = (y * width + x) * 4;
+				image.data[index] = shade;
+				image.data[index + 1] = shade;
+				image.data[index + 2] = (byte) 0xff;
+				image.data[index + 3] = (byte) 0xff;
+			}
+		}
+		image.red_offset = 0;
+		image.red_length = 8;
+		image.green_offset = 8;
+		image.green_length = 8;
+		image.blue_offset = 16;
+		image.blue_length = 8;
+		image.alpha_offset = 24;
+		image.alpha_length = 8;
+		return image;
+	}
+
+}
@@ -0,0 +1,35 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Provides a fixed number of {@link SimulatedDevice}s running the same script. */
+final class SimulatedDeviceProvider implements DeviceProvider {
+	private final Map<String, IDevice> devices = new LinkedHashMap<String, IDevice>();
+
+	SimulatedDeviceProvider(int count, SimulatedDevice.Script script, String applicationPackage) {
+		for (int i = 0; i < count; i++) {
+			String serial = "simulated-" + i;
+			devices.put(serial, SimulatedDevice.create(serial, script, applicationPackage));
+		}
+	}
+
+	@Override
+	public Collection<String> getSerials() {
+		return Collections.unmodifiableSet(devices.keySet());
+	}
+
+	@Override
+	public IDevice getDevice(String serial) {
+		IDevice device = devices.get(serial);
+		if (device == null) {
+			throw new IllegalArgumentException("Unknown device " + serial);
+		}
+		return device;
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.squareup.spoon;
+
+import com.stanfy.spoon.gradle.*;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Wall time of a whole run on {@link SimulatedDevice}s: installation, the test plan with the actions between
+ * the tests as {@code spoonAnalyzed} executes it, collection of the results and rendering of the report.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class SpoonRunBenchmark {
+	private static final String APPLICATION_PACKAGE = "com.example.app";
+	private static final int METHODS_PER_CLASS = 5;
+	/** Messages of the other processes logged during every test, dropped when only the application is logged. */
+	private static final int OTHER_MESSAGES_PER_TEST = 20;
+
+	@Param({"1", "4", "16"})
+	public int devices;
+
+	@Param({"100", "1000"})
+	public int tests;
+
+	/** {@code parallel} runs every test on all the devices, {@code shards} splits the tests between them. */
+	@Param({"parallel", "shards"})
+	public String mode;
+
+	@Param({"true", "false"})
+	public boolean batching;
+
+	@Param({"false", "true"})
+	public boolean logAppOnly;
+
+	private File root;
+	private File applicationApk;
+	private File instrumentationApk;
+	private List<TestStep> steps;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		root = File.createTempFile("spoon", "run");
+		root.delete();
+		root.mkdirs();
+		// The simulated devices do not look into the APKs, they only have to exist.
+		applicationApk = new File(root, "app.apk");
+		instrumentationApk = new File(root, "app-test.apk");
+		FileUtils.writeStringToFile(applicationApk, "application");
+		FileUtils.writeStringToFile(instrumentationApk, "instrumentation");
+
+		List<TestClassInfo> suite = TestSorterBenchmark.suite(tests / METHODS_PER_CLASS, METHODS_PER_CLASS);
+		steps = new ArrayList<TestStep>();
+		for (TestMethodInfo method : new TestSorter(suite, true).getTests()) {
+			steps.add(TestStep.of(method));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(root);
+	}
+
+	@Benchmark
+	public boolean run() throws Exception {
+		boolean sharded = "shards".equals(mode);
+		IncrementalSpoonRunner.Builder builder = new IncrementalSpoonRunner.Builder()
+				.setTitle("Simulated")
+				.setApplicationApk(applicationApk)
+				.setInstrumentationApk(instrumentationApk)
+				.setInstrumentationInfo(new SpoonInstrumentationInfo(APPLICATION_PACKAGE, APPLICATION_PACKAGE + ".test",
+						"android.test.InstrumentationTestRunner"))
+				.setOutputDirectory(new File(root, "output"))
+				.setDeviceProvider(new SimulatedDeviceProvider(devices,
+						new SimulatedDevice.Script().setOtherMessagesPerTest(OTHER_MESSAGES_PER_TEST), APPLICATION_PACKAGE))
+				.setParallel(!sharded)
+				.setLogAppOnly(logAppOnly)
+				.useAllAttachedDevices();
+		IncrementalSpoonRunner runner = builder.build();
+		runner.install(false);
+		try {
+			if (sharded) {
+				runShards(runner);
+			} else {
+				new TestPlanRunner(runner, APPLICATION_PACKAGE, Collections.<File>emptyList(), runner.getSerials(),
+						batching).run(steps);
+			}
+		} catch (Exception e) {
+			runner.finish();
+			throw e;
+		}
+		return runner.finish();
+	}
+
+	/** Same as {@code SpoonAnalyzedRunTask} does with sharding by count. */
+	private void runShards(final IncrementalSpoonRunner runner) throws Exception {
+		final List<String> serials = new ArrayList<String>(runner.getSerials());
+		Collections.sort(serials);
+		final List<List<TestStep>> shards = TestSharder.split(steps, serials.size(), "count");
+		ExecutorService executor = Executors.newFixedThreadPool(serials.size());
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < serials.size(); i++) {
+				final int index = i;
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						new TestPlanRunner(runner, APPLICATION_PACKAGE, Collections.<File>emptyList(),
+								Collections.singletonList(serials.get(index)), batching).run(shards.get(index));
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
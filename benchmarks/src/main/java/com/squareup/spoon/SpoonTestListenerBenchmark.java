@@ -0,0 +1,55 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.squareup.spoon.adapters.TestIdentifierAdapter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Handling of the instrumentation events by {@link SpoonTestListener}, one operation is a run of all the tests. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SpoonTestListenerBenchmark {
+
+	@Param({"100", "1000"})
+	public int tests;
+
+	/** Every n-th test fails, 0 for none. */
+	@Param({"0", "10"})
+	public int failEvery;
+
+	private TestIdentifier[] identifiers;
+	private final Map<String, String> metrics = Collections.emptyMap();
+
+	@Setup
+	public void setUp() {
+		identifiers = new TestIdentifier[tests];
+		for (int i = 0; i < tests; i++) {
+			identifiers[i] = new TestIdentifier("com.example.test.Test" + (i / 10), "test" + (i % 10));
+		}
+	}
+
+	@Benchmark
+	public DeviceResult.Builder run() {
+		DeviceResult.Builder result = new DeviceResult.Builder();
+		SpoonTestListener listener = new SpoonTestListener(result, false, TestIdentifierAdapter.JUNIT);
+		listener.testRunStarted("benchmark", tests);
+		for (int i = 0; i < tests; i++) {
+			TestIdentifier test = identifiers[i];
+			listener.testStarted(test);
+			if (failEvery > 0 && i % failEvery == 0) {
+				listener.testFailed(test, "junit.framework.AssertionFailedError: expected");
+			}
+			listener.testEnded(test, metrics);
+		}
+		listener.testRunEnded(0, metrics);
+		return result;
+	}
+
+}
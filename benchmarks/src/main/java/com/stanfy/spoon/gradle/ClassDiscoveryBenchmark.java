@@ -0,0 +1,94 @@
+package com.stanfy.spoon.gradle;
+
+import android.test.InstrumentationTestCase;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.annotation.Annotation;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Discovery of test classes with {@link TestClassScanner} in a directory of generated class files. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ClassDiscoveryBenchmark {
+	private static final int METHODS_PER_CLASS = 5;
+
+	/** Number of class files, half of them are tests. */
+	@Param({"100", "1000", "5000"})
+	public int classes;
+
+	private File root;
+	private File classesDir;
+	private File indexFile;
+	private File missingIndexFile;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		root = File.createTempFile("spoon", "discovery");
+		root.delete();
+		classesDir = new File(root, "classes");
+		indexFile = new File(root, "index.json");
+		missingIndexFile = new File(root, "missing.json");
+		writeClasses();
+		new TestClassScanner(classesDir, indexFile).scan();
+	}
+
+	@Setup(Level.Invocation)
+	public void deleteIndex() {
+		missingIndexFile.delete();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(root);
+	}
+
+	private void writeClasses() throws Exception {
+		ClassPool pool = new ClassPool(true);
+		pool.appendClassPath(new ClassClassPath(InstrumentationTestCase.class));
+		CtClass testCase = pool.get(InstrumentationTestCase.class.getName());
+		for (int i = 0; i < classes; i++) {
+			boolean test = i % 2 == 0;
+			CtClass clazz = pool.makeClass("com.example.app.Class" + i, test ? testCase : pool.get(Object.class.getName()));
+			for (int j = 0; j < METHODS_PER_CLASS; j++) {
+				CtMethod method = CtNewMethod.make("public void test" + j + "() {}", clazz);
+				if (test) {
+					AnnotationsAttribute attribute = new AnnotationsAttribute(clazz.getClassFile().getConstPool(),
+							AnnotationsAttribute.visibleTag);
+					attribute.addAnnotation(new Annotation(Test.class.getName(), clazz.getClassFile().getConstPool()));
+					method.getMethodInfo().addAttribute(attribute);
+				}
+				clazz.addMethod(method);
+			}
+			clazz.writeFile(classesDir.getAbsolutePath());
+			clazz.detach();
+		}
+	}
+
+	/** The first scan, every class file is parsed. */
+	@Benchmark
+	public List<TestClassInfo> fullScan() {
+		return new TestClassScanner(classesDir, missingIndexFile).scan();
+	}
+
+	/** Scan with an up to date index, no class file is parsed. */
+	@Benchmark
+	public List<TestClassInfo> indexedScan() {
+		return new TestClassScanner(classesDir, indexFile).scan();
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.stanfy.spoon.gradle;
+
+import com.stanfy.spoon.annotations.Action;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Ordering of synthetic test suites by {@link TestSorter} and {@link TestScheduler}. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TestSorterBenchmark {
+	private static final int METHODS_PER_CLASS = 5;
+
+	@Param({"100", "1000", "10000"})
+	public int classes;
+
+	private List<TestClassInfo> suite;
+	private List<TestStep> steps;
+
+	@Setup
+	public void setUp() {
+		suite = suite(classes, METHODS_PER_CLASS);
+		steps = new ArrayList<TestStep>();
+		for (TestMethodInfo method : new TestSorter(suite, true).getTests()) {
+			steps.add(TestStep.of(method));
+		}
+	}
+
+	/** Test classes with random class and method level actions. */
+	public static List<TestClassInfo> suite(int classes, int methods) {
+		Random random = new Random(42);
+		Action[] actions = {Action.None, Action.ForceStop, Action.ClearData};
+		List<TestClassInfo> result = new ArrayList<TestClassInfo>(classes);
+		for (int i = 0; i < classes; i++) {
+			TestClassInfo info = new TestClassInfo();
+			info.setName("com.example.test.Test" + i);
+			info.setSuperclassName("android.test.InstrumentationTestCase");
+			info.setBefore(actions[random.nextInt(actions.length)]);
+			info.setAfter(actions[random.nextInt(actions.length)]);
+			List<TestMethodInfo> infos = new ArrayList<TestMethodInfo>(methods);
+			for (int j = 0; j < methods; j++) {
+				TestMethodInfo method = new TestMethodInfo();
+				method.setClassName(info.getName());
+				method.setName("test" + j);
+				method.setIgnored(random.nextInt(20) == 0);
+				if (random.nextInt(4) == 0) {
+					method.setBefore(actions[random.nextInt(actions.length)]);
+				}
+				if (random.nextInt(4) == 0) {
+					method.setAfter(actions[random.nextInt(actions.length)]);
+				}
+				method.setClassBefore(info.getBefore());
+				method.setClassAfter(info.getAfter());
+				infos.add(method);
+			}
+			info.setMethods(infos);
+			result.add(info);
+		}
+		return result;
+	}
+
+	@Benchmark
+	public List<TestMethodInfo> sorted() {
+		return new TestSorter(suite, true).getTests();
+	}
+
+	/** Baseline: flattening of the classes without sorting. */
+	@Benchmark
+	public List<TestMethodInfo> unsorted() {
+		return new TestSorter(suite, false).getTests();
+	}
+
+	/** Cost based ordering of the sorted steps, as done with {@code costBasedOrdering}. */
+	@Benchmark
+	public List<TestStep> scheduled() {
+		return new TestScheduler(Collections.<Action, Long>emptyMap()).schedule(steps);
+	}
+
+}
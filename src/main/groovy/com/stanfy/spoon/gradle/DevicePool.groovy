@@ -0,0 +1,131 @@
+package com.stanfy.spoon.gradle
+
+import org.gradle.StartParameter
+import org.gradle.api.Task
+import org.gradle.api.invocation.Gradle
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+/**
+ * Devices shared by the Spoon tasks of a build.
+ * A task leases the devices it runs on and releases them when it is done, so that the tasks executed at the same
+ * time with parallel project execution never use the same device. Without parallel execution a task gets all the
+ * devices it asks for, otherwise the devices are split between the projects which still have Spoon tasks to run.
+ * Tasks of a single project are never run at the same time, so the variants of a module do not split the devices.
+ */
+class DevicePool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DevicePool)
+
+  /** Pools of the running builds. */
+  private static final Map<Gradle, DevicePool> POOLS = [:]
+
+  /** Whether the tasks may run at the same time. */
+  final boolean shared
+
+  /** Number of the Spoon tasks which have not finished yet by project path. */
+  private final Map<String, Integer> pendingTasks = [:]
+
+  private final Set<String> leased = [] as Set
+
+  DevicePool(boolean shared) {
+    this.shared = shared
+  }
+
+  /**
+   * Create the pool of the build, the pool is dropped when the build finishes.
+   * Called for every project the plugin is applied to, the pool is created once.
+   */
+  static synchronized void register(Gradle gradle) {
+    if (POOLS.containsKey(gradle)) {
+      return
+    }
+    DevicePool pool = new DevicePool(isParallel(gradle.startParameter))
+    POOLS[gradle] = pool
+    gradle.taskGraph.whenReady {
+      pool.setPendingTasks(gradle.taskGraph.allTasks.findAll { isSpoonTask(it) }.collect { it.project.path })
+    }
+    gradle.taskGraph.afterTask { Task task ->
+      if (isSpoonTask(task)) {
+        pool.taskFinished(task.project.path)
+      }
+    }
+    gradle.buildFinished {
+      synchronized (DevicePool) {
+        POOLS.remove(gradle)
+      }
+    }
+  }
+
+  /** Pool of the build. */
+  static synchronized DevicePool of(Gradle gradle) {
+    DevicePool pool = POOLS[gradle]
+    if (!pool) {
+      throw new IllegalStateException("Device pool is not registered for the build")
+    }
+    return pool
+  }
+
+  private static boolean isSpoonTask(Task task) {
+    return task instanceof SpoonRunTask || task instanceof SpoonAnalyzedRunTask
+  }
+
+  private static boolean isParallel(StartParameter parameter) {
+    // Gradle 2.x enables parallel execution by the thread count, the later versions have a flag.
+    if (parameter.hasProperty('parallelProjectExecutionEnabled')) {
+      return parameter.parallelProjectExecutionEnabled
+    }
+    return parameter.parallelThreadCount != 0
+  }
+
+  /** @param projects paths of the projects of the Spoon tasks to be run, one per task */
+  synchronized void setPendingTasks(Collection<String> projects) {
+    pendingTasks.clear()
+    projects.each { pendingTasks[it] = (pendingTasks[it] ?: 0) + 1 }
+  }
+
+  synchronized void taskFinished(String project) {
+    int left = (pendingTasks[project] ?: 0) - 1
+    if (left > 0) {
+      pendingTasks[project] = left
+    } else {
+      pendingTasks.remove(project)
+    }
+  }
+
+  /** Number of the Spoon tasks which may run at the same time, one per project. */
+  private int concurrentTasks() {
+    return Math.max(1, pendingTasks.size())
+  }
+
+  /**
+   * Lease a share of the devices, waiting until at least one of them is free.
+   * @param serials devices the task can run on
+   * @return leased devices, empty if no devices are given
+   */
+  synchronized Set<String> lease(Collection<String> serials) {
+    if (!serials) {
+      return [] as Set
+    }
+    int tasks = concurrentTasks()
+    int share = shared ? (serials.size() + tasks - 1).intdiv(tasks) as int : serials.size()
+    while (true) {
+      List<String> free = serials.findAll { !leased.contains(it) }
+      if (free) {
+        Set<String> result = free.take(share) as LinkedHashSet
+        leased.addAll(result)
+        LOG.info("Leased devices $result of $serials")
+        return result
+      }
+      LOG.info("Waiting for one of the devices $serials")
+      wait()
+    }
+  }
+
+  /** Return the devices to the pool. */
+  synchronized void release(Collection<String> serials) {
+    leased.removeAll(serials)
+    notifyAll()
+  }
+
+}
@@ -1,20 +1,22 @@
 package com.stanfy.spoon.gradle
-import android.test.InstrumentationTestCase
+import com.squareup.spoon.AdbSession
+import com.squareup.spoon.DeviceProvider
 import com.squareup.spoon.IncrementalSpoonRunner
+import com.squareup.spoon.RunMetrics
+import com.squareup.spoon.TestDurations
 import com.stanfy.spoon.annotations.Action
-import com.stanfy.spoon.annotations.EveryTest
-import com.stanfy.spoon.annotations.BeforeTest
-import com.stanfy.spoon.annotations.AfterTest
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
 import groovy.transform.PackageScope
-import javassist.ClassClassPath
-import javassist.ClassPool
-import javassist.Modifier
 import org.gradle.api.DefaultTask
 import org.gradle.api.GradleException
 import org.gradle.api.tasks.*
-import org.junit.Ignore
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
 /**
  * Task for using SpoonRunner.
  */
@@ -24,6 +26,12 @@ class SpoonAnalyzedRunTask extends DefaultTask implements VerificationTask {
   @PackageScope
   static final String TEST_SIZE_ALL = "all";
 
+  /** Name of the test classes metadata index in the task temporary directory. */
+  private static final String TEST_CLASSES_INDEX = "test-classes.json"
+
+  /** Name of the file with the action costs measured in the previous run in the task temporary directory. */
+  private static final String ACTION_COSTS = "action-costs.json"
+
   /** Plugin dependency name. */
   private static final String PLUGIN_DEP_NAME = "ru.mail.spoon:spoon-gradle-plugin"
   /** Spoon runner artifact name. */
@@ -87,6 +95,56 @@ class SpoonAnalyzedRunTask extends DefaultTask implements VerificationTask {
   /** Devices to run on. */
   Set<String> devices
 
+  /** Run every test on all the devices at the same time. */
+  boolean parallelDevices
+
+  /** Split the tests between the devices ('count', 'hash' or 'duration') instead of running every test on every device. */
+  @Input
+  @Optional
+  String sharding
+
+  /** Run consecutive tests which need no actions between them within a single instrumentation run. */
+  boolean batchTests
+
+  /** Number of threads converting and writing screenshots, 0 means number of processors. */
+  int screenshotThreads
+
+  /** Store identical screenshots once. */
+  boolean deduplicateScreenshots
+
+  /** Skip tests which passed against the same APKs, test class and device in the previous runs. */
+  boolean incremental
+
+  /** Do not install the APKs again when the device already has the identical ones. */
+  boolean skipInstalledApks
+
+  /** Maximum number of devices the APKs are installed to at the same time, 0 means the default. */
+  int installThreads
+
+  /** Write the log of every test to disk as soon as the test ends, always done when the tests are retried. */
+  boolean streamLogs
+
+  /** Tags of the logcat messages to keep, all the tags are kept if empty. */
+  List<String> logTags
+
+  /** Minimum priority of the logcat messages to keep. */
+  String logPriority
+
+  /** Keep only the logcat messages of the application and instrumentation processes. */
+  boolean logAppOnly
+
+  /** Update the report while the tests are running. */
+  boolean liveReport
+
+  /** Order the tests minimizing the cost of the actions performed between them. */
+  boolean costBasedOrdering
+
+  /** Costs of the actions in milliseconds by action name, costs measured in the previous run are used otherwise. */
+  Map<String, Long> actionCosts
+
+  /** Number of times a failed test is run again after the main pass, 0 disables retries. */
+  int retries
+
   @TaskAction
   void runSpoon() {
     LOG.info("Run instrumentation tests $instrumentationApk for app $applicationApk")
@@ -100,6 +158,13 @@ class SpoonAnalyzedRunTask extends DefaultTask implements VerificationTask {
     LOG.debug("Debug mode: $debug")
 
     LOG.debug("No animations: $noAnimations")
+    LOG.debug("Parallel devices: $parallelDevices")
+    LOG.debug("Sharding: $sharding")
+    LOG.debug("Batch tests: $batchTests")
+    LOG.debug("Incremental: $incremental")
+    LOG.debug("Skip installed APKs: $skipInstalledApks")
+    LOG.debug("Cost based ordering: $costBasedOrdering")
+    LOG.debug("Retries: $retries")
 
     String cp = getClasspath()
     LOG.debug("Classpath: $cp")
@@ -115,18 +180,54 @@ class SpoonAnalyzedRunTask extends DefaultTask implements VerificationTask {
         .setClasspath(cp)
         .setNoAnimations(noAnimations)
         .setBackupApk(backupApk)
+        .setParallel(parallelDevices)
+        .setDeduplicateScreenshots(deduplicateScreenshots)
+        .setIncremental(incremental)
+        .setSkipInstalledApks(skipInstalledApks)
+        .setDurationsFile(new File(temporaryDir, TestDurations.FILE))
+        // Only the streaming logger tells the runs of a retried test apart.
+        .setStreamLogs(streamLogs || retries > 0)
+        .setLogAppOnly(logAppOnly)
+        .setLiveReport(liveReport)
+
+    if (logTags) {
+      runBuilder.setLogTags(logTags)
+    }
+    if (logPriority) {
+      runBuilder.setLogPriority(logPriority)
+    }
 
-    if (allDevices) {
-      runBuilder.useAllAttachedDevices()
-      LOG.info("Using all the attached devices")
-    } else {
-      if (!devices) {
-        throw new GradleException("No devices specified to run the tests on");
-      }
-      devices.each {
+    if (screenshotThreads > 0) {
+      runBuilder.setScreenshotThreads(screenshotThreads)
+    }
+    if (installThreads > 0) {
+      runBuilder.setInstallThreads(installThreads)
+    }
+
+    if (!allDevices && !devices) {
+      throw new GradleException("No devices specified to run the tests on");
+    }
+    boolean success = runTests(runBuilder, DevicePool.of(project.gradle))
+
+    if (!success && !ignoreFailures) {
+      throw new GradleException("Tests failed! See ${output}/index.html")
+    }
+  }
+
+  private boolean runTests(IncrementalSpoonRunner.Builder runBuilder, DevicePool pool) {
+    DeviceProvider deviceProvider = AdbSession.get(project.android.sdkDirectory as File)
+    runBuilder.setDeviceProvider(deviceProvider)
+
+    // Devices are shared with the other Spoon tasks of the build running at the same time.
+    Set<String> leased = pool.lease(allDevices ? deviceProvider.serials : devices)
+    if (leased) {
+      leased.each {
         runBuilder.addDevice(it)
       }
-      LOG.info("Using devices $devices")
+      LOG.info("Using devices $leased")
+    } else {
+      runBuilder.useAllAttachedDevices()
+      LOG.info("Using all the attached devices")
     }
 
     boolean success = true
@@ -135,33 +236,15 @@ class SpoonAnalyzedRunTask extends DefaultTask implements VerificationTask {
     try {
       runner.install(false)
 
-      def pool = ClassPool.default
-      def test = pool.makeClass(InstrumentationTestCase.name)
-      pool.appendClassPath(new ClassClassPath(InstrumentationTestCase))
-
-      def classesToCheck = [];
-      testClasses.eachFileRecurse { def file ->
-        if (file.directory) {
-          return
-        }
-
-        def stream = file.newInputStream()
-        try {
-          def clazz = pool.makeClass(stream)
-          classesToCheck.add(clazz);
-        } finally {
-          stream.close()
-        }
-      }
-
-      def foundClasses = [:];
-      classesToCheck.each { def clazz ->
-        if (!Modifier.isAbstract(clazz.modifiers) && clazz.subclassOf(test)) {
-          foundClasses.put(clazz.getName(), clazz)
-        }
+      def scanTimer = runner.metrics.start(RunMetrics.SCAN, null)
+      def scanner = new TestClassScanner(testClasses, new File(temporaryDir, TEST_CLASSES_INDEX))
+      def foundClasses = scanner.scan().collectEntries { [it.name, it] }
+      scanTimer.stop()
+      if (incremental) {
+        scanner.classes.keySet().each { runner.setTestClassDigest(it, scanner.hierarchyDigest(it)) }
       }
 
-      def classesToRun = []
+      Collection<TestClassInfo> classesToRun = []
       if (orderedTestClasses) {
         orderedTestClasses.each {
           def clazz = foundClasses[it]
@@ -174,79 +257,87 @@ class SpoonAnalyzedRunTask extends DefaultTask implements VerificationTask {
         classesToRun = foundClasses.values()
       }
       logger.info "$classesToRun"
-      def lastAction = Action.None
-      new TestSorter(classesToRun, !orderedTestClasses).tests.each { method ->
-        Ignore ignore = method.getAnnotation(Ignore) as Ignore
-        def name = method.declaringClass.name
-        if (ignore) {
-          String reason = ignore.value()
-          if (reason) {
-            reason = " ($reason)"
-          }
-          runner.ignoreTests("ignore $name#$method.name$reason")
-          return
-        }
-        EveryTest annotation = method.declaringClass.getAnnotation(EveryTest) as EveryTest
-        def before = annotation ? annotation.before() : Action.None
-        def after = annotation ? annotation.after() : Action.None
-        if (method.hasAnnotation(BeforeTest)) {
-          before = method.getAnnotation(BeforeTest).value()
-        }
-        if (method.hasAnnotation(AfterTest)) {
-          after = method.getAnnotation(AfterTest).value()
-        }
-        def useBackups = false
-        if (before.ordinal() > lastAction.ordinal()) {
-          switch (before) {
-            case Action.ClearData:
-              runner.clearData packageName
-              break
-            case Action.ForceStop:
-              runner.forceStop packageName
-              break
-            case Action.RestoreBackup:
-              useBackups = true
-              break
-            case Action.None:
-              break
-            default:
-              throw new UnsupportedOperationException("Unsupported 'before' action: $before")
-          }
-        }
-        if (useBackups) {
-          if (!backups) {
-            throw new IllegalArgumentException("You must provide 'backupPrefix' and 'backups' in your orderedTests configuration to use Action.RestoreBackup")
-          }
-          backups.each { backup ->
-            runner.clearData packageName
-            runner.restoreBackup packageName, backup
-            runner.install(true)
-            runner.runTests(name, method.name)
-          }
-        } else {
-          runner.runTests(name, method.name)
-        }
-        switch (after) {
-          case Action.ClearData:
-            runner.clearData packageName
-            break
-          case Action.ForceStop:
-            runner.forceStop packageName
-            break
-          case Action.None:
-            break
-          default:
-            throw new UnsupportedOperationException("Unsupported 'after' action: $after")
-        }
-        lastAction = after
+      def sortTimer = runner.metrics.start(RunMetrics.SORT, null)
+      List<TestStep> steps = new TestSorter(classesToRun, !orderedTestClasses).tests.collect { TestStep.of(it) }
+      if (costBasedOrdering && !orderedTestClasses) {
+        steps = new TestScheduler(readActionCosts()).schedule(steps)
+      }
+      sortTimer.stop()
+      if (sharding) {
+        runShards(runner, steps)
+      } else {
+        new TestPlanRunner(runner, packageName, backups, runner.serials, batchTests).run(steps)
+      }
+      if (retries > 0) {
+        new TestRetrier(runner, packageName, steps, retries).run()
       }
 
     } finally {
-      success &= runner.finish()
+      try {
+        success &= runner.finish()
+      } finally {
+        pool.release(leased)
+      }
+      if (costBasedOrdering) {
+        writeActionCosts(runner.actionCosts)
+      }
     }
+    return success
+  }
 
-    if (!success && !ignoreFailures) {
-      throw new GradleException("Tests failed! See ${output}/index.html")
+  /** Action costs: configured ones, then measured in the previous run. */
+  private Map<Action, Long> readActionCosts() {
+    Map<Action, Long> costs = [:]
+    File file = new File(temporaryDir, ACTION_COSTS)
+    if (file.exists()) {
+      try {
+        (new JsonSlurper().parseText(file.getText("UTF-8")) as Map).each { name, cost ->
+          costs[Action.valueOf(name as String)] = cost as long
+        }
+      } catch (Exception e) {
+        LOG.warn("Ignoring unreadable action costs $file: $e.message")
+      }
+    }
+    actionCosts?.each { name, cost -> costs[Action.valueOf(name)] = cost as long }
+    LOG.debug("Action costs: $costs")
+    return costs
+  }
+
+  /** Keep the costs measured in this run, the costs of the actions which were not performed are kept. */
+  private void writeActionCosts(Map<String, Long> measured) {
+    File file = new File(temporaryDir, ACTION_COSTS)
+    Map<String, Long> costs = [:]
+    if (file.exists()) {
+      try {
+        costs.putAll(new JsonSlurper().parseText(file.getText("UTF-8")) as Map)
+      } catch (Exception ignored) {
+      }
+    }
+    costs.putAll(measured)
+    file.setText(JsonOutput.toJson(costs), "UTF-8")
+  }
+
+  private void runShards(IncrementalSpoonRunner runner, List<TestStep> steps) {
+    List<String> serials = runner.serials.toList().sort()
+    if (!serials) {
+      return
+    }
+    def shards = TestSharder.split(steps, serials.size(), sharding, runner.testDurations.estimates)
+    def executor = Executors.newFixedThreadPool(serials.size())
+    try {
+      def futures = (0..<serials.size()).collect { int index ->
+        String serial = serials[index]
+        List<TestStep> shard = shards[index]
+        LOG.info("Shard for $serial: ${shard.size()} test(s)")
+        executor.submit({
+          new TestPlanRunner(runner, packageName, backups, [serial], batchTests).run(shard)
+        } as Callable)
+      }
+      futures.each { it.get() }
+    } catch (ExecutionException e) {
+      throw e.cause
+    } finally {
+      executor.shutdownNow()
     }
   }
 
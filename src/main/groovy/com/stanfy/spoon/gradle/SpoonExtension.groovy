@@ -32,4 +32,52 @@ class SpoonExtension {
   /** Optional apk for restoring app data backups */
   File backupApk
 
+  /** Run every test on all the devices at the same time instead of one device after another */
+  boolean parallelDevices
+
+  /** Split the tests between the devices instead of running every test on every device: 'count', 'hash' or 'duration' */
+  String sharding
+
+  /** Run consecutive tests which need no data clearing or app stopping between them within a single instrumentation run */
+  boolean batchTests
+
+  /** Number of threads converting and writing screenshots, 0 means number of processors */
+  int screenshotThreads
+
+  /** Store identical screenshots once, all the tests ending on the same screen reference one file */
+  boolean deduplicateScreenshots
+
+  /** Skip tests which passed against the same APKs, test class and device in the previous runs */
+  boolean incremental
+
+  /** Do not install the application and test APKs again when the device already has the identical ones */
+  boolean skipInstalledApks
+
+  /** Maximum number of devices the APKs are installed to at the same time, 0 means the default (4) */
+  int installThreads
+
+  /** Write the logcat of every test to disk as soon as the test ends instead of keeping the whole log in memory */
+  boolean streamLogs
+
+  /** Tags of the logcat messages to keep, filtered on the device; all the tags are kept if empty */
+  List<String> logTags
+
+  /** Minimum priority of the logcat messages to keep (V, D, I, W, E), filtered on the device */
+  String logPriority
+
+  /** Keep only the logcat messages of the application and instrumentation processes */
+  boolean logAppOnly
+
+  /** Update the report while the tests are running, so results of the finished tests can be seen before the end */
+  boolean liveReport
+
+  /** Order the tests minimizing the cost of the actions (ForceStop, ClearData, ...) performed between them */
+  boolean costBasedOrdering
+
+  /** Costs of the actions in milliseconds by action name, e.g. [ClearData: 1500]; measured costs are used otherwise */
+  Map<String, Long> actionCosts
+
+  /** Number of times a failed test is run again after all the tests, on another device when possible; 0 disables retries */
+  int retries
+
 }
@@ -29,6 +29,7 @@ class SpoonPlugin implements Plugin<Project> {
     }
 
     project.extensions.add "spoon", SpoonExtension
+    DevicePool.register(project.gradle)
 
     def spoonTask = project.task("spoon") {
       group = "spoon"
@@ -154,6 +155,22 @@ class SpoonPlugin implements Plugin<Project> {
       backupApk = config.backupApk
       devices = config.devices
       allDevices = !config.devices
+      parallelDevices = config.parallelDevices
+      sharding = config.sharding
+      batchTests = config.batchTests
+      screenshotThreads = config.screenshotThreads
+      deduplicateScreenshots = config.deduplicateScreenshots
+      incremental = config.incremental
+      skipInstalledApks = config.skipInstalledApks
+      installThreads = config.installThreads
+      streamLogs = config.streamLogs
+      logTags = config.logTags
+      logPriority = config.logPriority
+      logAppOnly = config.logAppOnly
+      liveReport = config.liveReport
+      costBasedOrdering = config.costBasedOrdering
+      actionCosts = config.actionCosts
+      retries = config.retries
     }
   }
 
@@ -2,7 +2,9 @@ package com.stanfy.spoon.gradle
 
 import com.android.build.gradle.AppPlugin
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner
-import com.squareup.spoon.SpoonRunner
+import com.squareup.spoon.AdbSession
+import com.squareup.spoon.DeviceProvider
+import com.squareup.spoon.IncrementalSpoonRunner
 import groovy.transform.PackageScope
 import org.gradle.api.DefaultTask
 import org.gradle.api.GradleException
@@ -98,7 +100,8 @@ class SpoonRunTask extends DefaultTask implements VerificationTask {
     String cp = getClasspath()
     LOG.debug("Classpath: $cp")
 
-    SpoonRunner.Builder runBuilder = new SpoonRunner.Builder()    
+    // Runs through the shared session, so the ADB bridge of the other Spoon tasks stays up.
+    IncrementalSpoonRunner.Builder runBuilder = new IncrementalSpoonRunner.Builder()
         .setTitle(title)
         .setApplicationApk(applicationApk)
         .setInstrumentationApk(instrumentationApk)
@@ -110,26 +113,45 @@ class SpoonRunTask extends DefaultTask implements VerificationTask {
         .setAndroidSdk(project.android.sdkDirectory)
         .setClasspath(cp)
         .setNoAnimations(noAnimations)
+        .setParallel(true)
 
     if (testSize != TEST_SIZE_ALL) {
       // Will throw exception with informative message if provided size is illegal
       runBuilder.setTestSize(IRemoteAndroidTestRunner.TestSize.getTestSize(testSize))
-    }    
-        
-    if (allDevices) {
-      runBuilder.useAllAttachedDevices()
-      LOG.info("Using all the attached devices")
-    } else {
-      if (!devices) {
-        throw new GradleException("No devices specified to run the tests on");
-      }
-      devices.each {
+    }
+
+    DeviceProvider deviceProvider = AdbSession.get(project.android.sdkDirectory as File)
+    runBuilder.setDeviceProvider(deviceProvider)
+
+    if (!allDevices && !devices) {
+      throw new GradleException("No devices specified to run the tests on");
+    }
+    // Devices are shared with the other Spoon tasks of the build running at the same time.
+    DevicePool pool = DevicePool.of(project.gradle)
+    Set<String> leased = pool.lease(allDevices ? deviceProvider.serials : devices)
+    if (leased) {
+      leased.each {
         runBuilder.addDevice(it)
       }
-      LOG.info("Using devices $devices")
+      LOG.info("Using devices $leased")
+    } else {
+      runBuilder.useAllAttachedDevices()
+      LOG.info("Using all the attached devices")
     }
 
-    boolean success = runBuilder.build().run()
+    boolean success = true
+    IncrementalSpoonRunner runner = runBuilder.build()
+    try {
+      runner.install(false)
+      // The whole instrumentation, or the class and the method if they are set, on every device at once.
+      runner.runTests(runner.serials, className, methodName)
+    } finally {
+      try {
+        success &= runner.finish()
+      } finally {
+        pool.release(leased)
+      }
+    }
 
     if (!success && !ignoreFailures) {
       throw new GradleException("Tests failed! See ${output}/index.html")
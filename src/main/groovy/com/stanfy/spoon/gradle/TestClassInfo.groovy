@@ -0,0 +1,75 @@
+package com.stanfy.spoon.gradle
+
+import com.stanfy.spoon.annotations.Action
+import com.stanfy.spoon.annotations.EveryTest
+import javassist.CtClass
+import javassist.Modifier
+import org.junit.Test
+
+/**
+ * Test class metadata extracted from the bytecode.
+ */
+class TestClassInfo {
+
+  String name
+
+  String superclassName
+
+  /** Whether the class is abstract or an interface. */
+  boolean abstractClass
+
+  /** SHA-1 of the class file. */
+  String digest
+
+  /** {@link EveryTest#before()} of the class. */
+  Action before = Action.None
+
+  /** {@link EveryTest#after()} of the class. */
+  Action after = Action.None
+
+  /** Public methods annotated with {@link Test}, including the inherited ones. */
+  List<TestMethodInfo> methods = []
+
+  static TestClassInfo from(CtClass clazz, String digest) {
+    EveryTest everyTest = clazz.getAnnotation(EveryTest) as EveryTest
+    return new TestClassInfo(
+        name: clazz.name,
+        superclassName: clazz.classFile.superclass,
+        abstractClass: Modifier.isAbstract(clazz.modifiers),
+        digest: digest,
+        before: everyTest ? everyTest.before() : Action.None,
+        after: everyTest ? everyTest.after() : Action.None,
+        methods: clazz.methods.findAll { it.hasAnnotation(Test) }.collect { TestMethodInfo.from(it) }
+    )
+  }
+
+  Map toMap() {
+    return [
+        name: name,
+        superclassName: superclassName,
+        abstractClass: abstractClass,
+        digest: digest,
+        before: before.name(),
+        after: after.name(),
+        methods: methods*.toMap()
+    ]
+  }
+
+  static TestClassInfo fromMap(Map map) {
+    return new TestClassInfo(
+        name: map.name,
+        superclassName: map.superclassName,
+        abstractClass: map.abstractClass,
+        digest: map.digest,
+        before: Action.valueOf(map.before as String),
+        after: Action.valueOf(map.after as String),
+        methods: map.methods.collect { TestMethodInfo.fromMap(it as Map) }
+    )
+  }
+
+  @Override
+  String toString() {
+    return name
+  }
+
+}
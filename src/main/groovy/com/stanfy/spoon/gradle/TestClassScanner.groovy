@@ -0,0 +1,233 @@
+package com.stanfy.spoon.gradle
+
+import android.test.InstrumentationTestCase
+import com.google.common.base.Charsets
+import com.google.common.hash.Hashing
+import groovy.io.FileType
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
+import javassist.ClassClassPath
+import javassist.ClassPool
+import javassist.NotFoundException
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+
+/**
+ * Finds test classes in the compiled tests directory.
+ * Metadata of every class file is kept in an index keyed by the file path, size and modification time,
+ * so only changed class files (and the classes extending them) are parsed again on the next run.
+ */
+class TestClassScanner {
+
+  /** Index format version, the index is dropped when it does not match. */
+  private static final int VERSION = 1
+
+  /** Number of class files parsed with one class pool. */
+  private static final int CHUNK_SIZE = 100
+
+  /** Logger. */
+  private static final Logger LOG = LoggerFactory.getLogger(TestClassScanner.class)
+
+  private final File classesDir
+
+  private final File indexFile
+
+  /** Metadata of all the scanned classes by class name. */
+  final Map<String, TestClassInfo> classes = [:]
+
+  /** Number of class files parsed by the last scan. */
+  int parsedFiles
+
+  TestClassScanner(File classesDir, File indexFile) {
+    this.classesDir = classesDir
+    this.indexFile = indexFile
+  }
+
+  /**
+   * Scan the directory.
+   * @return non-abstract subclasses of {@link InstrumentationTestCase}
+   */
+  List<TestClassInfo> scan() {
+    Map<String, Map> previous = readIndex()
+    Map<String, Map> entries = [:]
+    Map<String, TestClassInfo> byPath = [:]
+    List<File> changed = []
+
+    classesDir.eachFileRecurse(FileType.FILES) { File file ->
+      if (!file.name.endsWith('.class')) {
+        return
+      }
+      String path = relativePath(file)
+      Map entry = previous[path]
+      if (entry && (entry.size as long) == file.length() && (entry.lastModified as long) == file.lastModified()) {
+        byPath[path] = TestClassInfo.fromMap(entry.info as Map)
+      } else {
+        changed << file
+      }
+    }
+
+    Set<String> changedNames = previous.findAll { path, entry -> !byPath.containsKey(path) }
+        .collect { path, entry -> entry.info.name as String } as Set
+    parseAll(changed).each { path, info ->
+      byPath[path] = info
+      changedNames << info.name
+    }
+
+    // Inherited test methods are stored with the subclass, so subclasses of the changed classes are parsed again.
+    Map<String, TestClassInfo> byName = byPath.values().collectEntries { [it.name, it] }
+    Set<String> parsed = changed.collect { relativePath(it) } as Set
+    def stale = byPath.findAll { path, info -> !parsed.contains(path) && extendsAny(info, byName, changedNames) }
+    byPath.putAll(parseAll(stale.keySet().collect { new File(classesDir, it) }))
+    parsedFiles = changed.size() + stale.size()
+    LOG.info("Parsed $parsedFiles of ${byPath.size()} class files in $classesDir")
+
+    byPath.sort().each { path, info ->
+      File file = new File(classesDir, path)
+      entries[path] = [size: file.length(), lastModified: file.lastModified(), info: info.toMap()]
+      classes[info.name] = info
+    }
+    writeIndex(entries)
+
+    // Only library superclasses are loaded here, test classes are resolved through the metadata.
+    ClassPool pool = createPool()
+    Map<String, Boolean> verdicts = [:]
+    return classes.values().findAll { !it.abstractClass && isTest(it.name, pool, verdicts) }
+  }
+
+  /**
+   * Digest of the class file together with the files of its superclasses found in the directory,
+   * it changes when the bytecode of any of them changes.
+   * Available after {@link #scan()}.
+   */
+  String hierarchyDigest(String name) {
+    List<String> digests = []
+    Set<String> visited = [] as Set
+    TestClassInfo info = classes[name]
+    while (info && visited.add(info.name)) {
+      digests << info.digest
+      info = classes[info.superclassName]
+    }
+    return Hashing.sha1().hashString(digests.join(':'), Charsets.UTF_8).toString()
+  }
+
+  /**
+   * Parse class files in parallel.
+   * Files are split into chunks, every chunk is parsed with its own class pool which is dropped afterwards,
+   * so no bytecode is kept in memory once the metadata is extracted.
+   * @return metadata by relative path
+   */
+  private Map<String, TestClassInfo> parseAll(List<File> files) {
+    Map<String, TestClassInfo> result = [:]
+    if (!files) {
+      return result
+    }
+    int threads = Math.min(Runtime.runtime.availableProcessors(), files.size())
+    def executor = Executors.newFixedThreadPool(threads)
+    try {
+      def futures = files.collate(CHUNK_SIZE).collect { List<File> chunk ->
+        executor.submit({
+          ClassPool pool = createPool()
+          chunk.collect { parse(pool, it) }
+        } as Callable<List<TestClassInfo>>)
+      }
+      int index = 0
+      futures.each { future ->
+        future.get().each { TestClassInfo info ->
+          result[relativePath(files[index++])] = info
+        }
+      }
+    } catch (ExecutionException e) {
+      throw e.cause
+    } finally {
+      executor.shutdownNow()
+    }
+    return result
+  }
+
+  private ClassPool createPool() {
+    ClassPool pool = new ClassPool(true)
+    pool.appendClassPath(new ClassClassPath(InstrumentationTestCase))
+    // Superclasses of the parsed classes are loaded from the same directory.
+    pool.appendClassPath(classesDir.absolutePath)
+    return pool
+  }
+
+  private static TestClassInfo parse(ClassPool pool, File file) {
+    byte[] bytes = file.bytes
+    def clazz = pool.makeClass(new ByteArrayInputStream(bytes))
+    try {
+      return TestClassInfo.from(clazz, Hashing.sha1().hashBytes(bytes).toString())
+    } finally {
+      clazz.detach()
+    }
+  }
+
+  private static boolean extendsAny(TestClassInfo info, Map<String, TestClassInfo> byName, Set<String> names) {
+    String superclass = info.superclassName
+    Set<String> visited = [] as Set
+    while (superclass && visited.add(superclass)) {
+      if (names.contains(superclass)) {
+        return true
+      }
+      superclass = byName[superclass]?.superclassName
+    }
+    return false
+  }
+
+  /** Whether the class is a subclass of {@link InstrumentationTestCase}. */
+  private boolean isTest(String name, ClassPool pool, Map<String, Boolean> verdicts) {
+    if (name == InstrumentationTestCase.name) {
+      return true
+    }
+    if (!name || name == Object.name) {
+      return false
+    }
+    Boolean verdict = verdicts[name]
+    if (verdict == null) {
+      // Mark the class to stop on cyclic hierarchies of broken class files.
+      verdicts[name] = false
+      TestClassInfo info = classes[name]
+      if (info) {
+        verdict = isTest(info.superclassName, pool, verdicts)
+      } else {
+        try {
+          verdict = pool.get(name).subclassOf(pool.get(InstrumentationTestCase.name))
+        } catch (NotFoundException ignored) {
+          verdict = false
+        }
+      }
+      verdicts[name] = verdict
+    }
+    return verdict
+  }
+
+  private String relativePath(File file) {
+    return classesDir.toURI().relativize(file.toURI()).path
+  }
+
+  private Map<String, Map> readIndex() {
+    if (!indexFile.exists()) {
+      return [:]
+    }
+    try {
+      Map index = new JsonSlurper().parseText(indexFile.getText("UTF-8")) as Map
+      if (index.version != VERSION || index.classesDir != classesDir.absolutePath) {
+        return [:]
+      }
+      return index.classes as Map<String, Map>
+    } catch (Exception e) {
+      LOG.warn("Ignoring unreadable test classes index $indexFile: $e.message")
+      return [:]
+    }
+  }
+
+  private void writeIndex(Map<String, Map> entries) {
+    indexFile.parentFile.mkdirs()
+    indexFile.setText(JsonOutput.toJson([version: VERSION, classesDir: classesDir.absolutePath, classes: entries]), "UTF-8")
+  }
+
+}
@@ -0,0 +1,80 @@
+package com.stanfy.spoon.gradle
+
+import com.stanfy.spoon.annotations.Action
+import com.stanfy.spoon.annotations.AfterTest
+import com.stanfy.spoon.annotations.BeforeTest
+import com.stanfy.spoon.annotations.EveryTest
+import javassist.CtMethod
+import org.junit.Ignore
+
+/**
+ * Test method metadata extracted from the bytecode.
+ */
+class TestMethodInfo {
+
+  /** Name of the class declaring the method. */
+  String className
+
+  String name
+
+  boolean ignored
+
+  /** Reason from {@link Ignore} annotation. */
+  String ignoreReason
+
+  /** Value of {@link BeforeTest}, {@code null} if the method is not annotated. */
+  Action before
+
+  /** Value of {@link AfterTest}, {@code null} if the method is not annotated. */
+  Action after
+
+  /** {@link EveryTest#before()} of the declaring class. */
+  Action classBefore = Action.None
+
+  /** {@link EveryTest#after()} of the declaring class. */
+  Action classAfter = Action.None
+
+  static TestMethodInfo from(CtMethod method) {
+    Ignore ignore = method.getAnnotation(Ignore) as Ignore
+    BeforeTest beforeTest = method.getAnnotation(BeforeTest) as BeforeTest
+    AfterTest afterTest = method.getAnnotation(AfterTest) as AfterTest
+    EveryTest everyTest = method.declaringClass.getAnnotation(EveryTest) as EveryTest
+    return new TestMethodInfo(
+        className: method.declaringClass.name,
+        name: method.name,
+        ignored: ignore != null,
+        ignoreReason: ignore?.value(),
+        before: beforeTest?.value(),
+        after: afterTest?.value(),
+        classBefore: everyTest ? everyTest.before() : Action.None,
+        classAfter: everyTest ? everyTest.after() : Action.None
+    )
+  }
+
+  Map toMap() {
+    return [
+        className: className,
+        name: name,
+        ignored: ignored,
+        ignoreReason: ignoreReason,
+        before: before?.name(),
+        after: after?.name(),
+        classBefore: classBefore.name(),
+        classAfter: classAfter.name()
+    ]
+  }
+
+  static TestMethodInfo fromMap(Map map) {
+    return new TestMethodInfo(
+        className: map.className,
+        name: map.name,
+        ignored: map.ignored,
+        ignoreReason: map.ignoreReason,
+        before: map.before ? Action.valueOf(map.before as String) : null,
+        after: map.after ? Action.valueOf(map.after as String) : null,
+        classBefore: Action.valueOf(map.classBefore as String),
+        classAfter: Action.valueOf(map.classAfter as String)
+    )
+  }
+
+}
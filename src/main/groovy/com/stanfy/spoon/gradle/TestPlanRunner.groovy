@@ -0,0 +1,118 @@
+package com.stanfy.spoon.gradle
+
+import com.squareup.spoon.IncrementalSpoonRunner
+import com.stanfy.spoon.annotations.Action
+
+/**
+ * Runs a sequence of test steps on a set of devices performing the actions requested for them.
+ */
+class TestPlanRunner {
+
+  private final IncrementalSpoonRunner runner
+
+  private final String packageName
+
+  private final List<File> backups
+
+  /** Devices this plan is executed on. */
+  private final Collection<String> serials
+
+  /** Whether consecutive steps without actions between them are run within a single instrumentation run. */
+  private final boolean batching
+
+  /** Action performed after the last executed test. */
+  private Action lastAction = Action.None
+
+  /** Steps waiting to be run in one batch. */
+  private final List<TestStep> pending = []
+
+  TestPlanRunner(IncrementalSpoonRunner runner, String packageName, List<File> backups, Collection<String> serials,
+                 boolean batching) {
+    this.runner = runner
+    this.packageName = packageName
+    this.backups = backups
+    this.serials = serials
+    this.batching = batching
+  }
+
+  void run(Collection<TestStep> steps) {
+    steps.each { runStep(it) }
+    flush()
+  }
+
+  private void runStep(TestStep step) {
+    def name = step.className
+    if (step.ignored) {
+      String reason = step.ignoreReason
+      if (reason) {
+        reason = " ($reason)"
+      }
+      runner.ignoreTests("ignore $name#$step.methodName$reason")
+      return
+    }
+    def before = step.before
+    def after = step.after
+    def useBackups = false
+    if (before.ordinal() > lastAction.ordinal()) {
+      flush()
+      switch (before) {
+        case Action.ClearData:
+          runner.clearData serials, packageName
+          break
+        case Action.ForceStop:
+          runner.forceStop serials, packageName
+          break
+        case Action.RestoreBackup:
+          useBackups = true
+          break
+        case Action.None:
+          break
+        default:
+          throw new UnsupportedOperationException("Unsupported 'before' action: $before")
+      }
+    }
+    if (useBackups) {
+      if (!backups) {
+        throw new IllegalArgumentException("You must provide 'backupPrefix' and 'backups' in your orderedTests configuration to use Action.RestoreBackup")
+      }
+      backups.each { backup ->
+        runner.clearData serials, packageName
+        runner.restoreBackup serials, packageName, backup
+        runner.reinstall serials, true
+        runner.runTests(serials, name, step.methodName)
+      }
+    } else {
+      pending << step
+      if (!batching || after != Action.None) {
+        flush()
+      }
+    }
+    switch (after) {
+      case Action.ClearData:
+        runner.clearData serials, packageName
+        break
+      case Action.ForceStop:
+        runner.forceStop serials, packageName
+        break
+      case Action.None:
+        break
+      default:
+        throw new UnsupportedOperationException("Unsupported 'after' action: $after")
+    }
+    lastAction = after
+  }
+
+  /** Run the pending steps. */
+  private void flush() {
+    if (!pending) {
+      return
+    }
+    if (pending.size() == 1) {
+      runner.runTests(serials, pending[0].className, pending[0].methodName)
+    } else {
+      runner.runTests(serials, pending.collect { "$it.className#$it.methodName".toString() })
+    }
+    pending.clear()
+  }
+
+}
@@ -0,0 +1,135 @@
+package com.stanfy.spoon.gradle
+
+import com.squareup.spoon.IncrementalSpoonRunner
+import com.stanfy.spoon.annotations.Action
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+
+/**
+ * Runs the failed tests again after the main pass.
+ * Every failed test is retried until it passes or the retries are exhausted, each time on a device it has not been
+ * tried on yet if there is such a device. Retries assigned to different devices are run at the same time,
+ * the actions requested for a test are performed on the device around its retry.
+ */
+class TestRetrier {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TestRetrier)
+
+  private final IncrementalSpoonRunner runner
+
+  private final String packageName
+
+  /** Steps of the run by test name. */
+  private final Map<String, TestStep> steps
+
+  private final int retries
+
+  /** Failed test waiting for a retry. */
+  private static class Retry {
+    final String failedSerial
+    final TestStep step
+    /** Devices the test has been run on. */
+    final Set<String> triedOn = [] as Set
+    boolean passed
+
+    Retry(String failedSerial, TestStep step) {
+      this.failedSerial = failedSerial
+      this.step = step
+      triedOn << failedSerial
+    }
+  }
+
+  /**
+   * @param steps steps of the main pass
+   * @param retries maximum number of retries of a test
+   */
+  TestRetrier(IncrementalSpoonRunner runner, String packageName, List<TestStep> steps, int retries) {
+    this.runner = runner
+    this.packageName = packageName
+    this.steps = steps.collectEntries { [it.toString(), it] }
+    this.retries = retries
+  }
+
+  void run() {
+    List<Retry> pending = []
+    runner.failedTests.each { String serial, List<String> tests ->
+      tests.each { String test ->
+        TestStep step = steps[test]
+        if (!step) {
+          return
+        }
+        if (step.before == Action.RestoreBackup) {
+          LOG.info("Not retrying $test which needs a backup restored")
+          return
+        }
+        pending << new Retry(serial, step)
+      }
+    }
+    if (!pending) {
+      return
+    }
+    int failed = pending.size()
+    LOG.info("Retrying $failed failed test(s) up to $retries time(s)")
+
+    for (int attempt = 1; attempt <= retries && pending; attempt++) {
+      runAttempt(assign(pending), attempt)
+      pending = pending.findAll { !it.passed }
+    }
+    LOG.info("${failed - pending.size()} of $failed failed test(s) passed when retried")
+  }
+
+  /** Spread the retries over the devices preferring the ones the test has not been run on. */
+  private Map<String, List<Retry>> assign(List<Retry> pending) {
+    Map<String, List<Retry>> assignment = runner.serials.collectEntries { [it, []] }
+    pending.each { Retry retry ->
+      // Retries of a test which failed on several devices should not run on the same device with the same name.
+      def free = assignment.keySet().findAll { serial -> !assignment[serial].any { it.step.is(retry.step) } }
+      def candidates = free.findAll { !retry.triedOn.contains(it) } ?: free ?: assignment.keySet()
+      String serial = candidates.min { assignment[it].size() }
+      assignment[serial] << retry
+    }
+    return assignment.findAll { serial, assigned -> assigned }
+  }
+
+  private void runAttempt(Map<String, List<Retry>> assignment, int attempt) {
+    def executor = Executors.newFixedThreadPool(assignment.size())
+    try {
+      def futures = assignment.collect { String serial, List<Retry> assigned ->
+        executor.submit({
+          assigned.each { runRetry(serial, it, attempt) }
+        } as Callable)
+      }
+      futures.each { it.get() }
+    } catch (ExecutionException e) {
+      throw e.cause
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  private void runRetry(String serial, Retry retry, int attempt) {
+    TestStep step = retry.step
+    perform(step.before, serial)
+    retry.passed = runner.retryTest(serial, retry.failedSerial, step.className, step.methodName, attempt)
+    retry.triedOn << serial
+    perform(step.after, serial)
+  }
+
+  private void perform(Action action, String serial) {
+    switch (action) {
+      case Action.ClearData:
+        runner.clearData([serial], packageName)
+        break
+      case Action.ForceStop:
+        runner.forceStop([serial], packageName)
+        break
+      default:
+        break
+    }
+  }
+
+}
@@ -0,0 +1,138 @@
+package com.stanfy.spoon.gradle
+
+import com.stanfy.spoon.annotations.Action
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+/**
+ * Orders test steps minimizing the total cost of the actions performed between the tests.
+ * {@link TestPlanRunner} skips an action requested before a test when the previous test has already performed
+ * the same or a stronger action after itself, so the cost of a sequence depends on the order of the steps.
+ */
+class TestScheduler {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TestScheduler)
+
+  /** Action costs in milliseconds used when they are neither configured nor measured. */
+  static final Map<Action, Long> DEFAULT_COSTS = [
+      (Action.None): 0L,
+      (Action.ForceStop): 500L,
+      (Action.ClearData): 2000L,
+      (Action.RestoreBackup): 10000L
+  ].asImmutable()
+
+  private final Map<Action, Long> costs
+
+  /**
+   * @param costs action costs in milliseconds, missing actions get the default cost
+   */
+  TestScheduler(Map<Action, Long> costs) {
+    this.costs = new EnumMap<Action, Long>(DEFAULT_COSTS)
+    this.costs.putAll(costs)
+  }
+
+  /**
+   * Order the steps greedily and compare the result with the given order.
+   * @param sorted steps ordered by {@link TestSorter}
+   * @return the cheaper of the two orders
+   */
+  List<TestStep> schedule(List<TestStep> sorted) {
+    List<TestStep> scheduled = order(sorted)
+    long sortedCost = cost(sorted)
+    long scheduledCost = cost(scheduled)
+    LOG.info("Estimated cost of the actions between tests: ${sortedCost} ms sorted, ${scheduledCost} ms scheduled, " +
+        "saved ${Math.max(0L, sortedCost - scheduledCost)} ms")
+    return scheduledCost <= sortedCost ? scheduled : sorted
+  }
+
+  /**
+   * Estimate the cost of the actions performed when the steps are run in the given order.
+   */
+  long cost(List<TestStep> steps) {
+    long total = 0
+    Action last = Action.None
+    steps.findAll { !it.ignored }.each { TestStep step ->
+      total += transition(last, step) + costs[step.after]
+      last = step.after
+    }
+    return total
+  }
+
+  /**
+   * Order the steps picking the cheapest next step every time.
+   * Among the free steps the ones requiring the strongest action before them are preferred, since they use up
+   * the action performed after the previous step, then the ones performing the strongest action after them,
+   * then the steps of the same class. Otherwise the original order is kept.
+   * Steps are kept in queues by their actions and class, so a step is picked in constant time.
+   */
+  List<TestStep> order(List<TestStep> steps) {
+    List<TestStep> result = steps.findAll { it.ignored }
+    List<TestStep> remaining = steps.findAll { !it.ignored }
+
+    // Positions of the steps by the pair of their actions, in the original order, and the same by class.
+    Action[] actions = Action.values()
+    List<ArrayDeque<Integer>> buckets = (0..<actions.length * actions.length).collect { new ArrayDeque<Integer>() }
+    List<Map<String, ArrayDeque<Integer>>> classBuckets = buckets.collect { [:] }
+    remaining.eachWithIndex { TestStep step, int index ->
+      int bucket = step.before.ordinal() * actions.length + step.after.ordinal()
+      buckets[bucket].add(index)
+      ArrayDeque<Integer> byClass = classBuckets[bucket][step.className]
+      if (byClass == null) {
+        byClass = new ArrayDeque<Integer>()
+        classBuckets[bucket][step.className] = byClass
+      }
+      byClass.add(index)
+    }
+
+    // Buckets in the order of preference after every action, the first bucket with a free step is picked.
+    List<List<Integer>> preferences = actions.collect { Action last ->
+      (0..<buckets.size()).sort(false) { int a, int b -> compareBuckets(last, a, b, actions) }
+    }
+
+    // A step stays in the queues when it is picked through the other one, it is dropped when found on the top.
+    boolean[] taken = new boolean[remaining.size()]
+    Action last = Action.None
+    String lastClass = null
+    for (int i = 0; i < remaining.size(); i++) {
+      int chosen = preferences[last.ordinal()].find { int bucket -> peek(buckets[bucket], taken) != null }
+      ArrayDeque<Integer> sameClass = classBuckets[chosen][lastClass]
+      Integer index = sameClass != null ? peek(sameClass, taken) : null
+      if (index == null) {
+        index = peek(buckets[chosen], taken)
+      }
+      taken[index] = true
+      TestStep next = remaining[index]
+      result << next
+      last = next.after
+      lastClass = next.className
+    }
+    return result
+  }
+
+  /** First position in the queue which is not taken yet, or {@code null}. */
+  private static Integer peek(ArrayDeque<Integer> queue, boolean[] taken) {
+    while (!queue.isEmpty() && taken[queue.peekFirst()]) {
+      queue.pollFirst()
+    }
+    return queue.peekFirst()
+  }
+
+  /** Compare the steps of two buckets as {@link #order(List)} prefers them after the given action. */
+  private int compareBuckets(Action last, int a, int b, Action[] actions) {
+    Action beforeA = actions[a.intdiv(actions.length) as int], afterA = actions[a % actions.length]
+    Action beforeB = actions[b.intdiv(actions.length) as int], afterB = actions[b % actions.length]
+    return transition(last, beforeA) <=> transition(last, beforeB) ?:
+        beforeB.ordinal() <=> beforeA.ordinal() ?:
+        afterB.ordinal() <=> afterA.ordinal()
+  }
+
+  /** Cost of the action performed before the step when the previous step ended with the given action. */
+  private long transition(Action last, TestStep step) {
+    return transition(last, step.before)
+  }
+
+  private long transition(Action last, Action before) {
+    return before.ordinal() > last.ordinal() ? costs[before] : 0L
+  }
+
+}
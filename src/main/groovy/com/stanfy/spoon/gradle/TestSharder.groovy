@@ -0,0 +1,90 @@
+package com.stanfy.spoon.gradle
+
+/**
+ * Splits the sorted list of test steps into shards, one shard per device.
+ */
+class TestSharder {
+
+  /**
+   * Consecutive steps are split into shards of about equal size.
+   * Shards are cut between the classes only, so the steps of a class and the actions around them stay on one shard.
+   */
+  static final String COUNT = "count"
+
+  /** Steps are split by a stable hash of their class name, so a class is always run on the same shard. */
+  static final String HASH = "hash"
+
+  /**
+   * Steps are distributed by their durations measured in the previous runs, the longest first,
+   * every step goes to the shard with the least total duration so far.
+   */
+  static final String DURATION = "duration"
+
+  /**
+   * Split steps into shards.
+   * Every shard keeps the order of the steps in the original list.
+   * @param steps sorted test steps
+   * @param count number of shards
+   * @param mode {@link #COUNT}, {@link #HASH} or {@link #DURATION}
+   * @param durations test durations in milliseconds by test name ({@code className#methodName}),
+   * used in {@link #DURATION} mode; steps without a duration are assumed to take the average time
+   * @return list of shards, its size is equal to {@code count}
+   */
+  static List<List<TestStep>> split(List<TestStep> steps, int count, String mode, Map<String, Long> durations = [:]) {
+    if (count < 1) {
+      throw new IllegalArgumentException("Can't split tests into $count shards")
+    }
+    List<List<TestStep>> shards = (0..<count).collect { [] }
+    switch (mode) {
+      case COUNT:
+        // A class goes to the shard its middle step would fall on if the steps were cut at equal intervals,
+        // the shards are filled one after another.
+        double share = steps.size() / (double) count
+        int placed = 0
+        int shard = 0
+        classBlocks(steps).each { List<TestStep> block ->
+          double middle = placed + block.size() / 2.0
+          while (shard < count - 1 && middle > share * (shard + 1) && shards[shard]) {
+            shard++
+          }
+          shards[shard].addAll(block)
+          placed += block.size()
+        }
+        break
+      case HASH:
+        steps.each { step ->
+          // String.hashCode() is specified by the JLS, so the split is the same on every run.
+          shards[Math.abs(step.className.hashCode() % count)] << step
+        }
+        break
+      case DURATION:
+        long average = durations ? (long) (durations.values().sum() / durations.size()) : 1L
+        Map<TestStep, Long> estimates = steps.collectEntries { [it, durations[it.toString()] ?: average] }
+        long[] loads = new long[count]
+        Map<TestStep, Integer> assignment = [:]
+        steps.sort(false) { -estimates[it] }.each { step ->
+          int shard = (0..<count).min { loads[it] }
+          loads[shard] += estimates[step]
+          assignment[step] = shard
+        }
+        steps.each { shards[assignment[it]] << it }
+        break
+      default:
+        throw new IllegalArgumentException("Unknown sharding mode '$mode', use '$COUNT', '$HASH' or '$DURATION'")
+    }
+    return shards
+  }
+
+  /** Runs of consecutive steps of the same class. */
+  private static List<List<TestStep>> classBlocks(List<TestStep> steps) {
+    List<List<TestStep>> blocks = []
+    steps.each { TestStep step ->
+      if (!blocks || blocks[-1][0].className != step.className) {
+        blocks << []
+      }
+      blocks[-1] << step
+    }
+    return blocks
+  }
+
+}
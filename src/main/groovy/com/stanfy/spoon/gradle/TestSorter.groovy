@@ -1,12 +1,6 @@
 package com.stanfy.spoon.gradle
 
 import com.stanfy.spoon.annotations.Action
-import com.stanfy.spoon.annotations.AfterTest
-import com.stanfy.spoon.annotations.BeforeTest
-import com.stanfy.spoon.annotations.EveryTest
-import javassist.CtClass
-import org.junit.Ignore
-import org.junit.Test
 
 class TestSorter {
 
@@ -24,7 +18,7 @@ class TestSorter {
 
     private def sorted = []
 
-    TestSorter(Collection<CtClass> classes, boolean sort) {
+    TestSorter(Collection<TestClassInfo> classes, boolean sort) {
         criteriaMap[[Action.ClearData,  Action.ClearData]]  =   clearAlways
         criteriaMap[[Action.ClearData,  Action.ForceStop]]  =   clearBeforeStopAfter
         criteriaMap[[Action.ClearData,  Action.None]]       =   clearBefore
@@ -44,21 +38,18 @@ class TestSorter {
         }
     }
 
-    private def init(Collection<CtClass> classes) {
+    private def init(Collection<TestClassInfo> classes) {
         classes.each {
-            EveryTest annotation = it.getAnnotation(EveryTest) as EveryTest
-            Action before = annotation ? annotation.before() : Action.None
-            Action after = annotation ? annotation.after() : Action.None
-            def methods = it.methods.findAll { !it.hasAnnotation(Ignore) && it.hasAnnotation(Test) }
+            Action before = it.before
+            Action after = it.after
+            def methods = it.methods.findAll { !it.ignored }
             if (methods) {
-                def beforeTest = methods.first().getAnnotation(BeforeTest) as BeforeTest
-                Action methodFirst = beforeTest?.value()
+                Action methodFirst = methods.first().before
                 if (methodFirst && methodFirst.ordinal() > before.ordinal()) {
                     before = methodFirst
                 }
 
-                def afterTest = methods.first().getAnnotation(AfterTest) as AfterTest
-                Action methodLast = afterTest?.value()
+                Action methodLast = methods.first().after
                 if (methodLast && methodLast.ordinal() > after.ordinal()) {
                     after = methodLast
                 }
@@ -99,33 +90,31 @@ class TestSorter {
 
     }
 
-    private def addOne(List<CtClass> listFrom) {
+    private def addOne(List<TestClassInfo> listFrom) {
         if (listFrom) {
             sorted << listFrom.remove(0)
         }
     }
 
-    private def addAll(List<CtClass> listFrom) {
+    private def addAll(List<TestClassInfo> listFrom) {
         sorted.addAll(listFrom)
         listFrom.clear()
     }
 
-    private def addPairs(List<CtClass> listOne, List<CtClass> listTwo) {
+    private def addPairs(List<TestClassInfo> listOne, List<TestClassInfo> listTwo) {
         while (listOne && listTwo) {
             sorted << listOne.remove(0) << listTwo.remove(0)
         }
     }
 
-    private def addTriples(List<CtClass> listOne, List<CtClass> listTwo, List<CtClass> listThree) {
+    private def addTriples(List<TestClassInfo> listOne, List<TestClassInfo> listTwo, List<TestClassInfo> listThree) {
         while (listOne && listTwo && listThree) {
             sorted << listOne.remove(0) << listTwo.remove(0) << listThree.remove(0)
         }
     }
 
-    def getTests() {
-        return sorted.collectMany {
-            it.methods.findAll { it.hasAnnotation(Test) }
-        }
+    List<TestMethodInfo> getTests() {
+        return sorted.collectMany { it.methods }
     }
 
 }
@@ -0,0 +1,45 @@
+package com.stanfy.spoon.gradle
+
+import com.stanfy.spoon.annotations.Action
+import org.junit.Ignore
+
+/**
+ * Test method together with the actions which should be performed around it.
+ */
+class TestStep {
+
+  final String className
+
+  final String methodName
+
+  /** Action to be performed before the test. */
+  final Action before
+
+  /** Action to be performed after the test. */
+  final Action after
+
+  final boolean ignored
+
+  /** Reason from {@link Ignore} annotation, may be empty. */
+  final String ignoreReason
+
+  TestStep(String className, String methodName, Action before, Action after, boolean ignored, String ignoreReason) {
+    this.className = className
+    this.methodName = methodName
+    this.before = before
+    this.after = after
+    this.ignored = ignored
+    this.ignoreReason = ignoreReason
+  }
+
+  static TestStep of(TestMethodInfo method) {
+    return new TestStep(method.className, method.name, method.before ?: method.classBefore,
+        method.after ?: method.classAfter, method.ignored, method.ignoreReason)
+  }
+
+  @Override
+  String toString() {
+    return "$className#$methodName"
+  }
+
+}
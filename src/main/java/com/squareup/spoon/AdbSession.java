@@ -0,0 +1,156 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * ADB bridge shared by all the runs of the JVM.
+ * The bridge is started once and terminated when the JVM exits, so that the tasks executed by a Gradle daemon
+ * do not pay for the bridge start and the device enumeration every time. Device handles are kept up to date
+ * by a device change listener. If the bridge is terminated by somebody else, e.g. by {@link SpoonRunner},
+ * it is started again on the next access.
+ */
+public final class AdbSession implements DeviceProvider, AndroidDebugBridge.IDeviceChangeListener {
+	private static final long INIT_TIMEOUT = 30000;
+	private static final long INIT_POLL_INTERVAL = 100;
+
+	/** Running ADB bridge. */
+	interface Connection {
+		/** Whether the bridge is still running, it is not after somebody else terminated it. */
+		boolean isAlive();
+
+		/** Devices known when the bridge started. */
+		Collection<IDevice> getDevices();
+	}
+
+	/** Starts the bridge. */
+	interface Connector {
+		Connection connect(String adbPath);
+	}
+
+	/** Connector starting the bridge of ddmlib. */
+	private static final Connector BRIDGE_CONNECTOR = new Connector() {
+		@Override
+		public Connection connect(String adbPath) {
+			AndroidDebugBridge.initIfNeeded(false);
+			final AndroidDebugBridge bridge = AndroidDebugBridge.createBridge(adbPath, false);
+			long deadline = System.currentTimeMillis() + INIT_TIMEOUT;
+			while (!bridge.hasInitialDeviceList()) {
+				if (System.currentTimeMillis() > deadline) {
+					throw new RuntimeException("Timeout getting device list from " + adbPath);
+				}
+				try {
+					Thread.sleep(INIT_POLL_INTERVAL);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while waiting for ADB", e);
+				}
+			}
+			return new Connection() {
+				@Override
+				public boolean isAlive() {
+					return AndroidDebugBridge.getBridge() == bridge && bridge.isConnected();
+				}
+
+				@Override
+				public Collection<IDevice> getDevices() {
+					return Arrays.asList(bridge.getDevices());
+				}
+			};
+		}
+	};
+
+	private static AdbSession instance;
+	private static boolean shutdownHookAdded;
+
+	private final String adbPath;
+	private final Connector connector;
+	/** Connected devices by serial. */
+	private final Map<String, IDevice> devices = new ConcurrentHashMap<String, IDevice>();
+	private Connection connection;
+
+	AdbSession(String adbPath, Connector connector) {
+		this.adbPath = adbPath;
+		this.connector = connector;
+	}
+
+	/** Session using ADB of the SDK, the session of another SDK is closed. */
+	public static synchronized AdbSession get(File androidSdk) {
+		String adbPath = FileUtils.getFile(androidSdk, "platform-tools", "adb").getAbsolutePath();
+		if (instance != null && !instance.adbPath.equals(adbPath)) {
+			AndroidDebugBridge.removeDeviceChangeListener(instance);
+			instance = null;
+		}
+		if (instance == null) {
+			instance = new AdbSession(adbPath, BRIDGE_CONNECTOR);
+			AndroidDebugBridge.addDeviceChangeListener(instance);
+		}
+		if (!shutdownHookAdded) {
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					AndroidDebugBridge.terminate();
+				}
+			}, "spoon-adb-shutdown"));
+			shutdownHookAdded = true;
+		}
+		return instance;
+	}
+
+	@Override
+	public Collection<String> getSerials() {
+		connect();
+		return new LinkedHashSet<String>(devices.keySet());
+	}
+
+	@Override
+	public IDevice getDevice(String serial) {
+		connect();
+		IDevice device = devices.get(serial);
+		if (device == null) {
+			throw new IllegalArgumentException("Unknown device serial: " + serial);
+		}
+		return device;
+	}
+
+	/** Start the bridge if there is none or the bridge was terminated. */
+	private synchronized void connect() {
+		if (connection != null && connection.isAlive()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		// Handles of the terminated bridge are not valid anymore.
+		devices.clear();
+		connection = connector.connect(adbPath);
+		for (IDevice device : connection.getDevices()) {
+			devices.put(device.getSerialNumber(), device);
+		}
+		logInfo("ADB bridge started in %d ms, devices: %s", System.currentTimeMillis() - start, devices.keySet());
+	}
+
+	@Override
+	public void deviceConnected(IDevice device) {
+		devices.put(device.getSerialNumber(), device);
+	}
+
+	@Override
+	public void deviceDisconnected(IDevice device) {
+		devices.remove(device.getSerialNumber());
+	}
+
+	@Override
+	public void deviceChanged(IDevice device, int changeMask) {
+		devices.put(device.getSerialNumber(), device);
+	}
+
+}
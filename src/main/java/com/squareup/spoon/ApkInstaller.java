@@ -0,0 +1,260 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.*;
+import com.google.common.base.Splitter;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Installs APKs skipping the installation when the device already has the identical package.
+ * The package file reported by the package manager is hashed on the device and compared with the APK, so a package
+ * installed by anybody else is recognized whatever its path is. The time the installation took is recorded on
+ * the device next to the package to report the time saved by skipping it.
+ */
+final class ApkInstaller {
+	private static final String MARKER_DIR = "/data/local/tmp";
+
+	private final boolean skipIdentical;
+	private final boolean debug;
+	/** Digests of the APKs by file and hash function. */
+	private final Map<String, String> digests = new ConcurrentHashMap<String, String>();
+	private final AtomicInteger installed = new AtomicInteger();
+	private final AtomicInteger skipped = new AtomicInteger();
+	private final AtomicLong savedMillis = new AtomicLong();
+	private final ExecutorService pushExecutor = Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setNameFormat("spoon-push-%d").setDaemon(true).build());
+
+	/**
+	 * @param skipIdentical whether installation of the package already present on the device should be skipped
+	 * @param debug whether or not debug logging is enabled
+	 */
+	ApkInstaller(boolean skipIdentical, boolean debug) {
+		this.skipIdentical = skipIdentical;
+		this.debug = debug;
+	}
+
+	/**
+	 * Install the package unless the device has exactly the same APK installed.
+	 *
+	 * @return error message or {@code null} if the package is installed
+	 */
+	String install(IDevice device, File apk, String packageName, String... extraArgs) throws InstallException {
+		return install(prepare(device, apk, packageName, false), extraArgs);
+	}
+
+	/**
+	 * Check whether the device already has the package and, if requested, start pushing the APK to the device
+	 * in background, so that the push overlaps with other work on the device.
+	 * The installation has to be completed with {@link #install(Installation, String...)} or {@link #discard}.
+	 */
+	Installation prepare(final IDevice device, final File apk, String packageName, boolean pushInBackground) {
+		Installation installation = new Installation(device, apk, packageName);
+		if (skipIdentical) {
+			installation.digest = digest(apk, Hashing.sha1());
+			if (isInstalled(device, apk, packageName)) {
+				// Record format: <digest> <installation time in ms>.
+				String[] record = shell(device, "cat " + marker(packageName) + " 2>/dev/null").split(" ");
+				installation.skip = true;
+				installation.savedMillis = record.length == 2 && record[0].equals(installation.digest)
+						? parseLong(record[1]) : 0;
+				return installation;
+			}
+		}
+		if (pushInBackground) {
+			installation.start = System.currentTimeMillis();
+			installation.remotePath = pushExecutor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return device.syncPackageToDevice(apk.getAbsolutePath());
+				}
+			});
+		}
+		return installation;
+	}
+
+	/**
+	 * Complete the installation.
+	 *
+	 * @return error message or {@code null} if the package is installed
+	 */
+	String install(Installation installation, String... extraArgs) throws InstallException {
+		IDevice device = installation.device;
+		if (installation.skip) {
+			skipped.incrementAndGet();
+			savedMillis.addAndGet(installation.savedMillis);
+			logDebug(debug, "[%s] %s is already installed, skipping %s", device.getSerialNumber(),
+					installation.packageName, installation.apk.getName());
+			return null;
+		}
+
+		String error;
+		if (installation.remotePath != null) {
+			String remotePath = awaitPush(installation);
+			try {
+				error = device.installRemotePackage(remotePath, true, extraArgs);
+			} finally {
+				device.removeRemotePackage(remotePath);
+			}
+		} else {
+			installation.start = System.currentTimeMillis();
+			error = device.installPackage(installation.apk.getAbsolutePath(), true, extraArgs);
+		}
+		if (error != null) {
+			return error;
+		}
+		long duration = System.currentTimeMillis() - installation.start;
+		installed.incrementAndGet();
+		if (skipIdentical) {
+			shell(device, "echo '" + installation.digest + " " + duration + "' > " + marker(installation.packageName));
+		}
+		return null;
+	}
+
+	/** Drop the prepared installation removing the pushed APK from the device. */
+	void discard(Installation installation) {
+		if (installation.remotePath == null) {
+			return;
+		}
+		try {
+			installation.device.removeRemotePackage(awaitPush(installation));
+		} catch (InstallException e) {
+			logDebug(debug, "[%s] Unable to remove %s: %s", installation.device.getSerialNumber(),
+					installation.apk.getName(), e.getMessage());
+		}
+	}
+
+	private static String awaitPush(Installation installation) throws InstallException {
+		try {
+			return installation.remotePath.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InstallException("Interrupted while pushing " + installation.apk.getName(), e);
+		} catch (ExecutionException e) {
+			throw new InstallException("Unable to push " + installation.apk.getName(), e.getCause());
+		}
+	}
+
+	/** Stop the background pushes, the installer is not used afterwards. */
+	void shutdown() {
+		pushExecutor.shutdownNow();
+	}
+
+	/** Log the number of skipped installations. */
+	void logSummary() {
+		if (skipIdentical) {
+			logInfo("Skipped %d of %d APK installations, saved about %d s.", skipped.get(),
+					skipped.get() + installed.get(), savedMillis.get() / 1000);
+		}
+	}
+
+	int getSkipped() {
+		return skipped.get();
+	}
+
+	long getSavedMillis() {
+		return savedMillis.get();
+	}
+
+	private static String marker(String packageName) {
+		return MARKER_DIR + "/spoon-" + packageName + ".sha1";
+	}
+
+	/**
+	 * Whether the package is installed from a single file identical to the APK.
+	 * Devices without {@code sha1sum} are checked with {@code md5sum} or {@code md5}, the package is treated as
+	 * not installed if none of them is available.
+	 */
+	private boolean isInstalled(IDevice device, File apk, String packageName) {
+		List<String> paths = new ArrayList<String>();
+		for (String line : Splitter.on('\n').trimResults().omitEmptyStrings()
+				.split(shell(device, "pm path " + packageName))) {
+			if (line.startsWith("package:")) {
+				paths.add(line.substring("package:".length()));
+			}
+		}
+		if (paths.size() != 1) {
+			// Not installed or installed from split APKs.
+			return false;
+		}
+		String path = paths.get(0);
+		String hash = shell(device, "sha1sum " + path + " 2>/dev/null || md5sum " + path + " 2>/dev/null || md5 "
+				+ path + " 2>/dev/null").split("\\s+")[0].toLowerCase(Locale.US);
+		if (hash.length() == 40) {
+			return hash.equals(digest(apk, Hashing.sha1()));
+		}
+		if (hash.length() == 32) {
+			return hash.equals(digest(apk, Hashing.md5()));
+		}
+		logDebug(debug, "[%s] Unable to hash %s on the device, installing %s", device.getSerialNumber(), path,
+				apk.getName());
+		return false;
+	}
+
+	/** Execute the command returning its output, failures are treated as empty output. */
+	private String shell(IDevice device, String command) {
+		CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+		try {
+			device.executeShellCommand(command, receiver);
+		} catch (Exception e) {
+			logDebug(debug, "[%s] '%s' failed: %s", device.getSerialNumber(), command, e.getMessage());
+			return "";
+		}
+		return receiver.getOutput().trim();
+	}
+
+	private String digest(File apk, HashFunction function) {
+		String key = function + ":" + apk.getAbsolutePath();
+		String digest = digests.get(key);
+		if (digest == null) {
+			try {
+				digest = Files.hash(apk, function).toString();
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to read " + apk, e);
+			}
+			digests.put(key, digest);
+		}
+		return digest;
+	}
+
+	private static long parseLong(String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/** Installation of a single APK on a single device. */
+	static final class Installation {
+		final IDevice device;
+		final File apk;
+		final String packageName;
+		String digest;
+		boolean skip;
+		long savedMillis;
+		long start;
+		Future<String> remotePath;
+
+		Installation(IDevice device, File apk, String packageName) {
+			this.device = device;
+			this.apk = apk;
+			this.packageName = packageName;
+		}
+	}
+
+}
@@ -0,0 +1,20 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+
+import java.util.Collection;
+
+/**
+ * Source of the devices the tests are run on.
+ * Devices connected through ADB are used by default, another provider can be set with
+ * {@link IncrementalSpoonRunner.Builder#setDeviceProvider(DeviceProvider)}, e.g. to run against simulated devices.
+ */
+public interface DeviceProvider {
+
+	/** Serials of all the attached devices, used when the devices are not specified. */
+	Collection<String> getSerials();
+
+	/** Device with the serial. */
+	IDevice getDevice(String serial);
+
+}
@@ -8,13 +8,13 @@ import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.google.common.base.Strings;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
 import com.squareup.spoon.adapters.TestIdentifierAdapter;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.TrueFileFilter;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
@@ -30,6 +30,11 @@ public class IncrementalSpoonDeviceRunner {
 	static final String TEMP_DIR = "work";
 	static final String JUNIT_DIR = "junit-reports";
 	static final String IMAGE_DIR = "image";
+	static final String LOG_DIR = "logcat";
+	/** Retries of a test are recorded as separate tests named {@code <method>_retry<attempt>}. */
+	static final String RETRY_SUFFIX = "_retry";
+	/** Log of a reused result, tells it apart from the tests which were actually run. */
+	static final String REUSED_MESSAGE = "Not run: the test passed in a previous run against the same build and device.";
 
 	private final File sdk;
 	private final File apk;
@@ -42,14 +47,42 @@ public class IncrementalSpoonDeviceRunner {
 	private final File work;
 	private final File junitReport;
 	private final File imageDir;
+	private final File logDir;
+	private final LogCatFilter logFilter;
 	private final String classpath;
 	private final SpoonInstrumentationInfo instrumentationInfo;
 	private DeviceResult.Builder result;
 	private SpoonDeviceLogger deviceLogger;
+	private StreamingDeviceLogger streamingLogger;
 	private IDevice device;
-    private XmlTestRunListener xmlTestRunListener;
-
-    private boolean started;
+	private volatile DeviceDetails deviceDetails;
+    private final JUnitReportWriter junitWriter;
+    private final ScreenshotStore screenshotStore;
+    private final ApkInstaller installer;
+    private final TestDurations durations;
+    private final RunMetrics metrics;
+    private long testStart;
+    /** Copy of the result of the running test, built from the same events as the result itself. */
+    private DeviceTestResult.Builder testCopy;
+    /** Whether the running test has not failed so far. */
+    private boolean testPassed;
+    /**
+     * Copies of the results of the finished tests, rendered while the tests are running.
+     * The builders of the result are completed by {@link #finish()}, so they are never rendered before that.
+     */
+    private final Map<DeviceTest, DeviceTestResult.Builder> finished =
+            Collections.synchronizedMap(new LinkedHashMap<DeviceTest, DeviceTestResult.Builder>());
+
+    private volatile boolean installFailed;
+    private String installFailure;
+    /** Whether the finished tests passed, as reported by the instrumentation. */
+    private final Map<DeviceTest, Boolean> outcomes =
+            Collections.synchronizedMap(new LinkedHashMap<DeviceTest, Boolean>());
+    /** Names the results of every run of a test on this device are recorded under, in the order of the runs. */
+    private final ListMultimap<DeviceTest, DeviceTest> runs =
+            Multimaps.synchronizedListMultimap(ArrayListMultimap.<DeviceTest, DeviceTest>create());
+    /** Reason the last instrumentation run failed, {@code null} if it did not. */
+    private volatile String runFailure;
 
     /**
 	 * Create a test runner for a single device.
@@ -63,11 +96,19 @@ public class IncrementalSpoonDeviceRunner {
 	 * @param adbTimeout time in ms for longest test execution
 	 * @param classpath Custom JVM classpath or {@code null}.
 	 * @param instrumentationInfo Test apk manifest information.
+	 * @param screenshotStore Screenshot store shared by all the devices.
+	 * @param installer APK installer shared by all the devices.
+	 * @param durations Store the test durations are recorded to or {@code null}.
+	 * @param streamLogs Whether the log of every test should be written to disk as soon as the test ends.
+	 * @param logFilter Filter of the device log or {@code null}, the log is always streamed when filtered.
+	 * @param metrics Metrics the time of the device phases is recorded to.
 	 */
 	IncrementalSpoonDeviceRunner(File sdk, File apk, File testApk, File output, String serial, boolean debug,
 					  boolean noAnimations, int adbTimeout, String classpath,
 					  SpoonInstrumentationInfo instrumentationInfo,
-					  IRemoteAndroidTestRunner.TestSize testSize) {
+					  IRemoteAndroidTestRunner.TestSize testSize, ScreenshotStore screenshotStore,
+					  ApkInstaller installer, TestDurations durations, boolean streamLogs,
+					  LogCatFilter logFilter, RunMetrics metrics) {
 		this.sdk = sdk;
 		this.apk = apk;
 		this.testApk = testApk;
@@ -78,55 +119,235 @@ public class IncrementalSpoonDeviceRunner {
 		this.testSize = testSize;
 		this.classpath = classpath;
 		this.instrumentationInfo = instrumentationInfo;
+		this.screenshotStore = screenshotStore;
+		this.installer = installer;
+		this.durations = durations;
+		this.metrics = metrics;
 
 		serial = SpoonUtils.sanitizeSerial(serial);
 		this.work = getFile(output, TEMP_DIR, serial);
 		this.junitReport = getFile(output, JUNIT_DIR, serial + ".xml");
 		this.imageDir = getFile(output, IMAGE_DIR, serial);
+		this.logFilter = logFilter;
+		this.logDir = streamLogs || logFilter != null ? getFile(output, LOG_DIR, serial) : null;
 
-        xmlTestRunListener = new XmlTestRunListener(junitReport);
-        xmlTestRunListener.getRunResult().setAggregateMetrics(true);
+        junitWriter = new JUnitReportWriter(junitReport, serial);
 	}
 
 	public boolean install(IDevice device, boolean allowDowngrade) {
 		this.device = device;
 
 		// Initiate device logging.
-		deviceLogger = new SpoonDeviceLogger(device);
+		if (logDir != null) {
+			streamingLogger = new StreamingDeviceLogger(device, logDir, logFilter);
+		} else {
+			deviceLogger = new SpoonDeviceLogger(device);
+		}
 
 		result = new DeviceResult.Builder();
+		if (!installPackages(allowDowngrade)) {
+			return false;
+		}
+
+		result.startTests();
+
+		return true;
+	}
+
+	/** Look up the processes whose messages are kept in the log again, after they were started or stopped. */
+	void refreshLogFilter() {
+		if (logFilter != null && device != null) {
+			logFilter.refresh(device);
+		}
+	}
+
+	/** Install the main application and the instrumentation application on the device. */
+	public boolean installPackages(boolean allowDowngrade) {
+		ApkInstaller.Installation testInstallation = null;
 		try {
-			// Now install the main application and the instrumentation application.
+			// The instrumentation APK is pushed while the main application is being installed.
+			testInstallation = installer.prepare(device, testApk, instrumentationInfo.getInstrumentationPackage(),
+					true);
 			String downgradeFlag = allowDowngrade ? "-d" : "";
-			String installError = device.installPackage(apk.getAbsolutePath(), true, downgradeFlag);
+			String installError = installer.install(device, apk, instrumentationInfo.getApplicationPackage(),
+					downgradeFlag);
 			if (installError != null) {
 				logInfo("[%s] app apk install failed.  Error [%s]", serial, installError);
-				result.markInstallAsFailed("Unable to install application APK.");
-				return false;
+				installer.discard(testInstallation);
+				return failInstall("Unable to install application APK.");
 			}
-			installError = device.installPackage(testApk.getAbsolutePath(), true);
+			installError = installer.install(testInstallation);
 			if (installError != null) {
 				logInfo("[%s] test apk install failed.  Error [%s]", serial, installError);
-				result.markInstallAsFailed("Unable to install instrumentation APK.");
-				return false;
+				return failInstall("Unable to install instrumentation APK.");
 			}
 		} catch (InstallException e) {
+			if (testInstallation != null) {
+				installer.discard(testInstallation);
+			}
 			logInfo("InstallException on device [%s]", serial);
 			e.printStackTrace(System.out);
-			result.markInstallAsFailed(e.getMessage());
-			return false;
+			return failInstall(e.getMessage());
 		}
+		return true;
+	}
 
-		result.startTests();
+	/**
+	 * Mark the installation on this device as failed, tests are not run on the device then.
+	 *
+	 * @return {@code false}
+	 */
+	public boolean failInstall(String message) {
+		if (result == null) {
+			result = new DeviceResult.Builder();
+		}
+		installFailed = true;
+		installFailure = message;
+		result.markInstallAsFailed(message);
+		return false;
+	}
 
-		return true;
+
+	public DeviceDetails getDeviceDetails() {
+		if (deviceDetails == null) {
+			deviceDetails = DeviceDetails.createForDevice(device);
+		}
+		return deviceDetails;
 	}
 
+	/**
+	 * Add a passed result for the test which was not run since it already passed against the same build.
+	 * The log of the result is {@link #REUSED_MESSAGE}.
+	 */
+	public void reuse(DeviceTest test) {
+		List<LogCatMessage> log = Collections.singletonList(new LogCatMessage(Log.LogLevel.INFO, "", "", "", "Spoon",
+				"", REUSED_MESSAGE));
+		DeviceTestResult.Builder builder = new DeviceTestResult.Builder().startTest().endTest();
+		builder.setLog(log);
+		result.addTestResultBuilder(test, builder);
+		DeviceTestResult.Builder copy = new DeviceTestResult.Builder().startTest().endTest();
+		copy.setLog(log);
+		finished.put(test, copy);
+		outcomes.put(test, true);
+	}
+
+	/** Results of the tests finished so far, may be taken while the tests are running. */
+	public DeviceResult snapshot() {
+		DeviceResult.Builder snapshot = new DeviceResult.Builder();
+		if (installFailed) {
+			return snapshot.markInstallAsFailed("Unable to install.").build();
+		}
+		if (deviceDetails != null) {
+			snapshot.setDeviceDetails(deviceDetails);
+		}
+		snapshot.startTests();
+		synchronized (finished) {
+			for (Map.Entry<DeviceTest, DeviceTestResult.Builder> test : finished.entrySet()) {
+				snapshot.addTestResultBuilder(test.getKey(), test.getValue());
+			}
+		}
+		return snapshot.endTests().build();
+	}
 
 	/** Execute instrumentation on the target device and return a result summary.
 	 * @param className
 	 * @param methodName*/
 	public boolean run(final String className, final String methodName) {
+		return execute(className, methodName, null, null);
+	}
+
+	/**
+	 * Run a test once again, the result is recorded as a separate test.
+	 *
+	 * @param attempt number of the retry
+	 * @return result of the retry
+	 */
+	public DeviceTest retry(String className, String methodName, int attempt) {
+		execute(className, methodName, null, RETRY_SUFFIX + attempt);
+		return new DeviceTest(className, methodName + RETRY_SUFFIX + attempt);
+	}
+
+	/** Whether the test finished and passed on this device. */
+	public boolean isPassed(DeviceTest test) {
+		return Boolean.TRUE.equals(outcomes.get(test));
+	}
+
+	/** Tests which finished on this device and did not pass, retries are not included. */
+	public List<DeviceTest> getFailedTests() {
+		List<DeviceTest> failed = new ArrayList<DeviceTest>();
+		synchronized (outcomes) {
+			for (Map.Entry<DeviceTest, Boolean> test : outcomes.entrySet()) {
+				if (!isRetry(test.getKey()) && !test.getValue()) {
+					failed.add(test.getKey());
+				}
+			}
+		}
+		return failed;
+	}
+
+	static boolean isRetry(DeviceTest test) {
+		return test.getMethodName().matches(".*" + RETRY_SUFFIX + "\\d+");
+	}
+
+	/**
+	 * Execute several tests within a single instrumentation run.
+	 * Results are still attributed to the individual test methods.
+	 * A crash of the instrumentation ends the run, the tests it did not get to are run again in a new batch.
+	 * Once a batch does not start any of them, they are reported as failed with the reason the run failed.
+	 * @param tests test names in {@code className#methodName} format
+	 */
+	public boolean run(List<String> tests) {
+		boolean success = execute(null, null, tests, null);
+		List<String> missing = notStarted(tests);
+		while (!missing.isEmpty()) {
+			logInfo("[%s] Instrumentation run ended before %d test(s) of the batch: %s", serial, missing.size(),
+					runFailure);
+			success &= execute(null, null, missing, null);
+			List<String> left = notStarted(missing);
+			if (left.size() == missing.size()) {
+				for (String test : left) {
+					String[] parts = test.split("#", 2);
+					reportNotRun(new DeviceTest(parts[0], parts[1]), runFailure);
+				}
+				return false;
+			}
+			missing = left;
+		}
+		return success;
+	}
+
+	/** Tests of the batch which were never started on this device. */
+	private List<String> notStarted(List<String> tests) {
+		List<String> missing = new ArrayList<String>();
+		for (String test : tests) {
+			String[] parts = test.split("#", 2);
+			if (!runs.containsKey(new DeviceTest(parts[0], parts[1]))) {
+				missing.add(test);
+			}
+		}
+		return missing;
+	}
+
+	/** Record a test which could not be run as failed, the message is the reason of the failure. */
+	private void reportNotRun(DeviceTest test, String message) {
+		message = message != null ? message : "Instrumentation run ended before the test was started";
+		DeviceTestResult.Builder builder = new DeviceTestResult.Builder().startTest();
+		builder.markTestAsError(message);
+		result.addTestResultBuilder(test, builder.endTest());
+		DeviceTestResult.Builder copy = new DeviceTestResult.Builder().startTest();
+		copy.markTestAsError(message);
+		copy.endTest();
+		copy.setLog(Collections.<LogCatMessage>emptyList());
+		finished.put(test, copy);
+		outcomes.put(test, false);
+		runs.put(test, test);
+		junitWriter.addError(test.getClassName(), test.getMethodName(), message);
+	}
+
+	/**
+	 * @param retrySuffix suffix added to the names of the executed tests, {@code null} if it is not a retry
+	 */
+	private boolean execute(String className, String methodName, List<String> tests, final String retrySuffix) {
 		String testPackage = instrumentationInfo.getInstrumentationPackage();
 		String testRunner = instrumentationInfo.getTestRunnerClass();
 		TestIdentifierAdapter testIdentifierAdapter = TestIdentifierAdapter.fromTestRunner(testRunner);
@@ -143,11 +364,14 @@ public class IncrementalSpoonDeviceRunner {
 		logDebug(debug, "[%s] setDeviceDetails %s", serial, deviceDetails);
 
 		// Run all the tests! o/
+		runFailure = null;
 		try {
 			logInfo("About to actually run tests for [%s]", serial);
 			RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(testPackage, testRunner, device);
 			runner.setMaxtimeToOutputResponse(adbTimeout);
-			if (!Strings.isNullOrEmpty(className)) {
+			if (tests != null) {
+				runner.setClassNames(tests.toArray(new String[tests.size()]));
+			} else if (!Strings.isNullOrEmpty(className)) {
 				if (Strings.isNullOrEmpty(methodName)) {
 					runner.setClassName(className);
 				} else {
@@ -157,62 +381,94 @@ public class IncrementalSpoonDeviceRunner {
 			if (testSize != null) {
 				runner.setTestSize(testSize);
 			}
-            xmlTestRunListener.getRunResult().setRunComplete(false);
-            runner.run(
+            ITestRunListener[] listeners = {
                     new SpoonTestListener(result, debug, TestIdentifierAdapter.JUNIT),
                     new ITestRunListener() {
                         @Override
                         public void testRunStarted(String runName, int testCount) {
-                            if (!started) {
-                                started = true;
-                                xmlTestRunListener.testRunStarted(runName, testCount);
-                            }
+                            // Every run is a new process, it is looked up here and not by the log reader.
+                            refreshLogFilter();
+                            junitWriter.testRunStarted(runName, testCount);
                         }
 
                         @Override
                         public void testStarted(TestIdentifier test) {
-                            xmlTestRunListener.testStarted(test);
+                            testStart = System.currentTimeMillis();
+                            testCopy = new DeviceTestResult.Builder().startTest();
+                            testPassed = true;
+                            recordRun(test, retrySuffix);
+                            junitWriter.testStarted(test);
 
                         }
 
                         @Override
                         public void testFailed(TestIdentifier test, String trace) {
-                            xmlTestRunListener.testFailed(test, trace);
+                            // Same statuses as SpoonTestListener sets.
+                            if (testCopy != null) {
+                                testCopy.markTestAsError(trace);
+                            }
+                            testPassed = false;
+                            junitWriter.testFailed(test, trace);
                         }
 
                         @Override
                         public void testAssumptionFailure(TestIdentifier test, String trace) {
-                            xmlTestRunListener.testAssumptionFailure(test, trace);
+                            if (testCopy != null) {
+                                testCopy.markTestAsFailed(trace);
+                            }
+                            testPassed = false;
+                            junitWriter.testAssumptionFailure(test, trace);
                         }
 
                         @Override
                         public void testIgnored(TestIdentifier test) {
-                            xmlTestRunListener.testIgnored(test);
+                            junitWriter.testIgnored(test);
                         }
 
                         @Override
                         public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
-                            takeScreenshot(className, methodName);
-                            xmlTestRunListener.testEnded(test, testMetrics);
+                            if (durations != null && retrySuffix == null) {
+                                durations.record(getDeviceDetails().getModel(),
+                                        test.getClassName() + "#" + test.getTestName(),
+                                        System.currentTimeMillis() - testStart);
+                            }
+                            takeScreenshot(test.getClassName(), test.getTestName());
+                            junitWriter.testEnded(test, testMetrics);
+                            outcomes.put(new DeviceTest(test.getClassName(), test.getTestName()), testPassed);
+                            if (testCopy != null) {
+                                // The copy is complete, rendering it does not change it.
+                                testCopy.endTest();
+                                testCopy.setLog(Collections.<LogCatMessage>emptyList());
+                                finished.put(new DeviceTest(test.getClassName(), test.getTestName()), testCopy);
+                                testCopy = null;
+                            }
                         }
 
                         @Override
                         public void testRunFailed(String errorMessage) {
-                            xmlTestRunListener.testRunFailed(errorMessage);
+                            runFailure = errorMessage;
+                            junitWriter.testRunFailed(errorMessage);
                         }
 
                         @Override
                         public void testRunStopped(long elapsedTime) {
-                            xmlTestRunListener.testRunStopped(elapsedTime);
+                            junitWriter.testRunStopped(elapsedTime);
                         }
 
                         @Override
                         public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
-                            xmlTestRunListener.getRunResult().testRunEnded(elapsedTime, runMetrics);
+                            junitWriter.testRunEnded(elapsedTime, runMetrics);
                         }
                     }
-            );
+            };
+            if (retrySuffix != null) {
+                for (int i = 0; i < listeners.length; i++) {
+                    listeners[i] = new RenamingListener(listeners[i], retrySuffix);
+                }
+            }
+            runner.run(listeners);
         } catch (Exception e) {
+			runFailure = e.toString();
 			result.addException(e);
 			return false;
 		}
@@ -220,12 +476,13 @@ public class IncrementalSpoonDeviceRunner {
 	}
 
     private void takeScreenshot(String className, String methodName) {
-        BufferedImage image = null;
         try {
-            image = getScreenshot();
-            imageDir.mkdirs();
-            File output = getScreenshotFile(className, methodName);
-            ImageIO.write(image, "png", output);
+            // Only grab the frame here, conversion and encoding are done in background.
+            RunMetrics.Timer fetch = metrics.start(RunMetrics.SCREENSHOT_FETCH, serial);
+            RawImage screenshot = device.getScreenshot();
+            fetch.stop();
+            screenshotStore.store(serial, new DeviceTest(className, methodName), screenshot,
+                    getScreenshotFile(className, methodName));
         } catch (TimeoutException e) {
             e.printStackTrace();
         } catch (AdbCommandRejectedException e) {
@@ -235,38 +492,46 @@ public class IncrementalSpoonDeviceRunner {
         }
     }
 
-    private BufferedImage getScreenshot() throws TimeoutException, AdbCommandRejectedException, IOException {
-        RawImage screenshot = device.getScreenshot();
-        BufferedImage image = new BufferedImage(screenshot.width, screenshot.height, BufferedImage.TYPE_INT_ARGB);
-        int index=0;
-        int bytesPerPixel=screenshot.bpp >> 3;
-        for (int y=0; y < screenshot.height; y++) {
-            for (int x=0; x < screenshot.width; x++) {
-                image.setRGB(x,y,screenshot.getARGB(index) | 0xff000000);
-                index+=bytesPerPixel;
-            }
+    public DeviceResult finish() {
+        if (installFailed) {
+            // Nothing was run, the device is reported as a failed test case so that CI does not lose it.
+            stopLogger();
+            junitWriter.addError(instrumentationInfo.getInstrumentationPackage(), "install", installFailure);
+            junitWriter.close();
+            return result.build();
         }
-        return image;
-    }
 
-    public DeviceResult finish() {
-        xmlTestRunListener.getRunResult().setRunComplete(false);
-        xmlTestRunListener.testRunEnded(0, new HashMap<String, String>());
+        junitWriter.close();
 
 		String appPackage = instrumentationInfo.getApplicationPackage();
 
 		// Grab all the parsed logs and map them to individual tests.
-		Map<DeviceTest, List<LogCatMessage>> logs = deviceLogger.getParsedLogs();
-		for (Map.Entry<DeviceTest, List<LogCatMessage>> entry : logs.entrySet()) {
-			DeviceTestResult.Builder builder = result.getMethodResultBuilder(entry.getKey());
-			if (builder != null) {
-				builder.setLog(entry.getValue());
-                String className = entry.getKey().getClassName();
-                String methodName = entry.getKey().getMethodName();
-                File screenshot = getScreenshotFile(className, methodName);
-                builder.addScreenshot(screenshot);
+		RunMetrics.Timer logcat = metrics.start(RunMetrics.LOGCAT, serial);
+		Map<DeviceTest, List<List<LogCatMessage>>> logs = streamingLogger != null ? streamingLogger.getLogs()
+				: lastRuns(deviceLogger.getParsedLogs());
+		logcat.stop();
+		Map<DeviceTest, List<LogCatMessage>> attached = new LinkedHashMap<DeviceTest, List<LogCatMessage>>();
+		for (Map.Entry<DeviceTest, List<List<LogCatMessage>>> entry : logs.entrySet()) {
+			List<DeviceTest> names = runs.get(entry.getKey());
+			if (names.isEmpty()) {
+				names = Collections.singletonList(entry.getKey());
+			}
+			// Logs are matched with the runs from the last one, a run whose start was not logged gets no log.
+			List<List<LogCatMessage>> testLogs = entry.getValue();
+			for (int i = 1; i <= testLogs.size() && i <= names.size(); i++) {
+				attached.put(names.get(names.size() - i), testLogs.get(testLogs.size() - i));
+			}
+		}
+		synchronized (runs) {
+			for (DeviceTest name : runs.values()) {
+				if (!attached.containsKey(name)) {
+					attached.put(name, null);
+				}
 			}
 		}
+		for (Map.Entry<DeviceTest, List<LogCatMessage>> entry : attached.entrySet()) {
+			attach(entry.getKey(), entry.getValue());
+		}
 
 		try {
 			logDebug(debug, "About to grab screenshots and prepare output for [%s]", serial);
@@ -287,6 +552,108 @@ public class IncrementalSpoonDeviceRunner {
 		return result.endTests().build();
 	}
 
+    /** Stop reading the device log, the logger is not started if the device was not reached. */
+    private void stopLogger() {
+        if (streamingLogger != null) {
+            streamingLogger.getLogs();
+        } else if (deviceLogger != null) {
+            deviceLogger.getParsedLogs();
+        }
+    }
+
+    /** Remember the name the result of the started test is recorded under. */
+    private void recordRun(TestIdentifier test, String retrySuffix) {
+        String name = test.getTestName();
+        if (retrySuffix != null && name.endsWith(retrySuffix)) {
+            name = name.substring(0, name.length() - retrySuffix.length());
+        }
+        runs.put(new DeviceTest(test.getClassName(), name), new DeviceTest(test.getClassName(), test.getTestName()));
+    }
+
+    /** Logs of a logger keeping only the last run of every test. */
+    private static Map<DeviceTest, List<List<LogCatMessage>>> lastRuns(Map<DeviceTest, List<LogCatMessage>> logs) {
+        Map<DeviceTest, List<List<LogCatMessage>>> result = new LinkedHashMap<DeviceTest, List<List<LogCatMessage>>>();
+        for (Map.Entry<DeviceTest, List<LogCatMessage>> entry : logs.entrySet()) {
+            result.put(entry.getKey(), Collections.singletonList(entry.getValue()));
+        }
+        return result;
+    }
+
+    /** Add the log and the screenshot to the result of the test. */
+    private void attach(DeviceTest test, List<LogCatMessage> log) {
+        DeviceTestResult.Builder builder = result.getMethodResultBuilder(test);
+        if (builder == null) {
+            return;
+        }
+        if (log != null) {
+            builder.setLog(log);
+        }
+        File screenshot = screenshotStore.awaitScreenshot(serial, test);
+        if (screenshot != null) {
+            builder.addScreenshot(screenshot);
+        }
+    }
+
+    /** Passes the events to the listener with the suffix added to the test names. */
+    private static final class RenamingListener implements ITestRunListener {
+        private final ITestRunListener listener;
+        private final String suffix;
+
+        RenamingListener(ITestRunListener listener, String suffix) {
+            this.listener = listener;
+            this.suffix = suffix;
+        }
+
+        private TestIdentifier rename(TestIdentifier test) {
+            return new TestIdentifier(test.getClassName(), test.getTestName() + suffix);
+        }
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+            listener.testRunStarted(runName, testCount);
+        }
+
+        @Override
+        public void testStarted(TestIdentifier test) {
+            listener.testStarted(rename(test));
+        }
+
+        @Override
+        public void testFailed(TestIdentifier test, String trace) {
+            listener.testFailed(rename(test), trace);
+        }
+
+        @Override
+        public void testAssumptionFailure(TestIdentifier test, String trace) {
+            listener.testAssumptionFailure(rename(test), trace);
+        }
+
+        @Override
+        public void testIgnored(TestIdentifier test) {
+            listener.testIgnored(rename(test));
+        }
+
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            listener.testEnded(rename(test), testMetrics);
+        }
+
+        @Override
+        public void testRunFailed(String errorMessage) {
+            listener.testRunFailed(errorMessage);
+        }
+
+        @Override
+        public void testRunStopped(long elapsedTime) {
+            listener.testRunStopped(elapsedTime);
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+            listener.testRunEnded(elapsedTime, runMetrics);
+        }
+    }
+
     private File getScreenshotFile(String className, String methodName) {
         return new File(imageDir, "screen_" + className + "-" + methodName + ".png");
     }
@@ -2,13 +2,27 @@ package com.squareup.spoon;
 
 import com.android.ddmlib.*;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
-import com.squareup.spoon.html.HtmlRenderer;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.squareup.spoon.html.ParallelHtmlRenderer;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -16,11 +30,21 @@ import static com.squareup.spoon.DeviceTestResult.Status;
 import static com.squareup.spoon.SpoonInstrumentationInfo.parseFromFile;
 import static com.squareup.spoon.SpoonLogger.logDebug;
 import static com.squareup.spoon.SpoonLogger.logInfo;
-import static com.squareup.spoon.SpoonUtils.obtainRealDevice;
 
 /** Represents a collection of devices and the test configuration to be executed. */
 public class IncrementalSpoonRunner {
 	private static final String DEFAULT_TITLE = "Spoon Execution";
+	private static final int DEFAULT_INSTALL_THREADS = 4;
+	private static final long PROCESS_STOP_TIMEOUT = 10000;
+	private static final long PROCESS_POLL_INTERVAL = 100;
+	/** Minimum time between the renders of the report while the tests are running. */
+	private static final long LIVE_REPORT_INTERVAL = 5000;
+	/** Pages of the report rendered at the same time. */
+	private static final int RENDER_THREADS = Runtime.getRuntime().availableProcessors();
+	private static final long RESTORE_TIMEOUT = 5 * 60 * 1000;
+	private static final long RESTORE_POLL_INTERVAL = 200;
+	/** Backup archives pushed to the device are kept here by their digest. */
+	private static final String BACKUP_CACHE_DIR = "/sdcard/spoon-cache";
 
 	private final String title;
 	private final File androidSdk;
@@ -37,10 +61,52 @@ public class IncrementalSpoonRunner {
 	private final String classpath;
 	private final IRemoteAndroidTestRunner.TestSize testSize;
 	private final boolean failIfNoDeviceConnected;
-	private AndroidDebugBridge adb;
+	private final boolean parallel;
+	private final int screenshotThreads;
+	private final int installThreads;
+	private final boolean deduplicateScreenshots;
+	private final boolean incremental;
+	private final boolean streamLogs;
+	private final boolean liveReportEnabled;
+	private volatile LiveReportRenderer liveReport;
+	private final RunMetrics metrics = new RunMetrics();
+	private final List<String> logTags;
+	private final Log.LogLevel logPriority;
+	private final boolean logAppOnly;
+	private final ApkInstaller installer;
+	private final File durationsFile;
+	private final TestDurations durations;
+	private DeviceProvider deviceProvider;
+	private final SpoonInstrumentationInfo instrumentationInfo;
+	private ScreenshotStore screenshotStore;
 	private SpoonSummary.Builder summary;
+	/** Device runners, read by the live report while the tests are running. */
 	private final Map<String, IncrementalSpoonDeviceRunner> testRunners =
-            new HashMap<String, IncrementalSpoonDeviceRunner>();
+			Collections.synchronizedMap(new LinkedHashMap<String, IncrementalSpoonDeviceRunner>());
+	/** Devices the application or the tests could not be installed to. */
+	private final Set<String> failedSerials = new LinkedHashSet<String>();
+	/** Single threaded executors, one per device, used when tests are run on all devices at the same time. */
+	private final Map<String, ExecutorService> deviceExecutors = new HashMap<String, ExecutorService>();
+	/** Executes actions like data clearing on all the devices at the same time. */
+	private final ExecutorService actionExecutor = Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setNameFormat("spoon-action-%d").setDaemon(true).build());
+	/** Total time and number of the actions performed on the devices by action type. */
+	private final Map<String, long[]> actionCosts = new HashMap<String, long[]>();
+	/** Test executions dispatched to the devices since they were last waited for, by device serial. */
+	private final ListMultimap<String, Future<?>> inFlight =
+			Multimaps.synchronizedListMultimap(ArrayListMultimap.<String, Future<?>>create());
+	/** Digests of the test classes bytecode, used as a part of the result key in incremental mode. */
+	private final Map<String, String> classDigests = new ConcurrentHashMap<String, String>();
+	/** Results of the previous run. */
+	private ResultIndex previousResults;
+	/** Keys of the tests dispatched during this run. */
+	private final ResultIndex currentKeys = new ResultIndex();
+	private String applicationDigest;
+	/** Digests of the backup archives. */
+	private final Map<File, String> backupDigests = new ConcurrentHashMap<File, String>();
+	private String instrumentationDigest;
+	/** Failed tests which passed when retried, by device serial and test name. */
+	private final Set<String> forgiven = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
 	private IncrementalSpoonRunner(Builder builder) {
 		title = builder.title;
@@ -58,6 +124,21 @@ public class IncrementalSpoonRunner {
 		testSize = builder.testSize;
 		serials = builder.serials;
 		failIfNoDeviceConnected = builder.failIfNoDeviceConnected;
+		parallel = builder.parallel;
+		screenshotThreads = builder.screenshotThreads;
+		installThreads = builder.installThreads;
+		deduplicateScreenshots = builder.deduplicateScreenshots;
+		incremental = builder.incremental;
+		logTags = builder.logTags;
+		logPriority = builder.logPriority;
+		logAppOnly = builder.logAppOnly;
+		streamLogs = builder.streamLogs || isLogFiltered();
+		liveReportEnabled = builder.liveReport;
+		installer = new ApkInstaller(builder.skipInstalledApks, debug);
+		durationsFile = builder.durationsFile;
+		durations = durationsFile != null ? TestDurations.read(durationsFile) : null;
+		deviceProvider = builder.deviceProvider;
+		instrumentationInfo = builder.instrumentationInfo;
 	}
 
 	/**
@@ -65,61 +146,426 @@ public class IncrementalSpoonRunner {
 	 *
 	 * @return {@code true} if there were no test failures or exceptions thrown.
 	 */
-	public void install(boolean allowDowngrade) {
+	public void install(final boolean allowDowngrade) {
 		checkArgument(applicationApk.exists(), "Could not find application APK.");
 		checkArgument(instrumentationApk.exists(), "Could not find instrumentation APK.");
 
-		if (adb == null) {
-			adb = SpoonUtils.initAdb(androidSdk);
+		awaitInFlight(serials);
+
+		if (deviceProvider == null) {
+			deviceProvider = AdbSession.get(androidSdk);
 		}
 
 		if (serials.isEmpty()) {
-			serials.addAll(SpoonUtils.findAllDevices(adb));
+			serials.addAll(deviceProvider.getSerials());
 		}
 
 		summary = new SpoonSummary.Builder().setTitle(title).start();
+		if (testSize != null) {
+			summary.setTestSize(testSize);
+		}
 
 		if (failIfNoDeviceConnected && serials.isEmpty()) {
 			throw new RuntimeException("No device(s) found.");
 		}
 
+		if (incremental && previousResults == null) {
+			previousResults = ResultIndex.read(new File(output, ResultIndex.FILE));
+			applicationDigest = digest(applicationApk);
+			instrumentationDigest = digest(instrumentationApk);
+		}
+
 		try {
-			FileUtils.deleteDirectory(output);
+			cleanOutput();
 		} catch (IOException e) {
 			throw new RuntimeException("Unable to clean output directory: " + output, e);
 		}
 
-		final SpoonInstrumentationInfo testInfo = parseFromFile(instrumentationApk);
+		final SpoonInstrumentationInfo testInfo = instrumentationInfo != null ? instrumentationInfo
+				: parseFromFile(instrumentationApk);
+
+		if (screenshotStore == null) {
+			screenshotStore = new ScreenshotStore(new File(output, IncrementalSpoonDeviceRunner.IMAGE_DIR),
+					new ScreenshotWriter(screenshotThreads, screenshotThreads * 2, metrics), deduplicateScreenshots);
+		}
 
 		logDebug(debug, "Application: %s from %s", testInfo.getApplicationPackage(),
 				applicationApk.getAbsolutePath());
 		logDebug(debug, "Instrumentation: %s from %s", testInfo.getInstrumentationPackage(),
 				instrumentationApk.getAbsolutePath());
 
-		for (String serial : serials) {
-			IncrementalSpoonDeviceRunner testRunner = getTestRunner(serial, testInfo);
-			testRunners.put(serial, testRunner);
-			IDevice device = SpoonUtils.obtainRealDevice(adb, serial);
-			if (!testRunner.install(device, allowDowngrade)) {
-                throw new RuntimeException("Can't install to device " + serial);
-            }
+		// Devices are installed concurrently, a device which failed is excluded from the run and reported.
+		Map<String, Future<Boolean>> installs = new LinkedHashMap<String, Future<Boolean>>();
+		ExecutorService installExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(installThreads,
+				serials.size())), new ThreadFactoryBuilder().setNameFormat("spoon-install-%d").setDaemon(true).build());
+		try {
+			for (final String serial : serials) {
+				final IncrementalSpoonDeviceRunner testRunner = getTestRunner(serial, testInfo);
+				testRunners.put(serial, testRunner);
+				installs.put(serial, installExecutor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						RunMetrics.Timer timer = metrics.start(RunMetrics.INSTALL, serial);
+						IDevice device = deviceProvider.getDevice(serial);
+						try {
+							return testRunner.install(device, allowDowngrade);
+						} finally {
+							timer.stop();
+						}
+					}
+				}));
+			}
+			for (Map.Entry<String, Future<Boolean>> install : installs.entrySet()) {
+				String serial = install.getKey();
+				try {
+					if (!install.getValue().get()) {
+						failedSerials.add(serial);
+					}
+				} catch (ExecutionException e) {
+					logInfo("[%s] Installation failed: %s", serial, e.getCause());
+					testRunners.get(serial).failInstall(String.valueOf(e.getCause().getMessage()));
+					failedSerials.add(serial);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while installing", e);
+		} finally {
+			installExecutor.shutdownNow();
+		}
+
+		serials.removeAll(failedSerials);
+		if (!failedSerials.isEmpty()) {
+			logInfo("Can't install to device(s) %s, the tests are run on %s", failedSerials, serials);
+			if (serials.isEmpty()) {
+				throw new RuntimeException("Can't install to any device");
+			}
+		}
+
+		if (liveReportEnabled && liveReport == null) {
+			liveReport = new LiveReportRenderer(output, LIVE_REPORT_INTERVAL, RENDER_THREADS, new LiveReportRenderer.Snapshot() {
+				@Override
+				public SpoonSummary take() {
+					return snapshot();
+				}
+			}, debug);
+		}
+
+		if (parallel) {
+			for (String serial : serials) {
+				if (!deviceExecutors.containsKey(serial)) {
+					deviceExecutors.put(serial, Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+							.setNameFormat("spoon-" + serial + "-%d").setDaemon(true).build()));
+				}
+			}
 		}
 	}
 
+	/**
+	 * Delete the results of the previous run.
+	 * JUnit report parts left by an interrupted run are kept, their reports are recovered next to the new ones.
+	 */
+	private void cleanOutput() throws IOException {
+		File junitDir = new File(output, IncrementalSpoonDeviceRunner.JUNIT_DIR);
+		File[] files = output.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (!file.equals(junitDir)) {
+				FileUtils.forceDelete(file);
+			}
+		}
+		File[] reports = junitDir.listFiles();
+		if (reports != null) {
+			for (File report : reports) {
+				if (!report.getName().endsWith(JUnitReportWriter.PART_SUFFIX)) {
+					FileUtils.forceDelete(report);
+				}
+			}
+		}
+		JUnitReportWriter.recoverAll(junitDir);
+	}
+
+	/**
+	 * Install the application and the tests once again on the specified devices keeping results collected so far.
+	 */
+	public void reinstall(Collection<String> targets, boolean allowDowngrade) {
+		awaitInFlight(targets);
+		for (String serial : targets) {
+			RunMetrics.Timer timer = metrics.start(RunMetrics.INSTALL, serial);
+			boolean installed = testRunners.get(serial).installPackages(allowDowngrade);
+			timer.stop();
+			if (!installed) {
+				throw new RuntimeException("Can't install to device " + serial);
+			}
+		}
+	}
+
+	/** Serials of the devices the tests are executed on. */
+	public Set<String> getSerials() {
+		return Collections.unmodifiableSet(serials);
+	}
+
 	public boolean finish() {
-		AndroidDebugBridge.terminate();
+		try {
+			return collectResults();
+		} finally {
+			if (screenshotStore != null) {
+				// The run failed before the screenshots were collected, the writer threads are stopped anyway.
+				screenshotStore.close();
+				screenshotStore = null;
+			}
+		}
+	}
+
+	/** Wait for the devices, collect their results and render the report. */
+	private boolean collectResults() {
+		try {
+			awaitInFlight(serials);
+		} finally {
+			for (ExecutorService executor : deviceExecutors.values()) {
+				executor.shutdownNow();
+			}
+			deviceExecutors.clear();
+			actionExecutor.shutdownNow();
+			installer.shutdown();
+		}
+
+		// The bridge is kept for the next runs, see AdbSession.
+		installer.logSummary();
 
 		if (summary == null) {
 			return false;
 		}
 
-		for (String serial : serials) {
-			String safeSerial = SpoonUtils.sanitizeSerial(serial);
-			summary.addResult(safeSerial, testRunners.get(serial).finish());
+		if (liveReport != null) {
+			liveReport.stop();
+			liveReport = null;
+		}
+
+		// Logs and screenshots of the devices are collected at the same time.
+		Map<String, Future<DeviceResult>> results = new LinkedHashMap<String, Future<DeviceResult>>();
+		ExecutorService finishExecutor = Executors.newFixedThreadPool(Math.max(1, testRunners.size()),
+				new ThreadFactoryBuilder().setNameFormat("spoon-finish-%d").setDaemon(true).build());
+		try {
+			for (final Map.Entry<String, IncrementalSpoonDeviceRunner> testRunner : testRunners.entrySet()) {
+				results.put(testRunner.getKey(), finishExecutor.submit(new Callable<DeviceResult>() {
+					@Override
+					public DeviceResult call() {
+						RunMetrics.Timer timer = metrics.start(RunMetrics.FINISH, testRunner.getKey());
+						try {
+							return testRunner.getValue().finish();
+						} finally {
+							timer.stop();
+						}
+					}
+				}));
+			}
+			for (Map.Entry<String, Future<DeviceResult>> entry : results.entrySet()) {
+				String safeSerial = SpoonUtils.sanitizeSerial(entry.getKey());
+				DeviceResult result = entry.getValue().get();
+				summary.addResult(safeSerial, result);
+				if (incremental && previousResults != null) {
+					recordResults(safeSerial, result);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while collecting results", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Unable to collect results", e.getCause());
+		} finally {
+			finishExecutor.shutdownNow();
+		}
+		if (screenshotStore != null) {
+			screenshotStore.close();
+			screenshotStore = null;
+		}
+		if (!debug) {
+			// Clean up anything in the work directory, devices use it until their results are collected.
+			FileUtils.deleteQuietly(new File(output, SpoonDeviceRunner.TEMP_DIR));
 		}
         SpoonSummary build = summary.end().build();
+		RunMetrics.Timer renderTimer = metrics.start(RunMetrics.RENDER, null);
         render(build);
-        return parseOverallSuccess(build);
+		renderTimer.stop();
+		if (streamLogs && !debug) {
+			// Logs spilled to disk are needed for rendering only.
+			FileUtils.deleteQuietly(new File(output, IncrementalSpoonDeviceRunner.LOG_DIR));
+		}
+		if (incremental && previousResults != null) {
+			previousResults.write(new File(output, ResultIndex.FILE));
+		}
+		if (durations != null) {
+			durations.write(durationsFile);
+		}
+		metrics.write(new File(output, RunMetrics.FILE));
+		metrics.logSummary();
+        return forgiven.isEmpty() ? parseOverallSuccess(build) : parseSuccessWithRetries(build);
+	}
+
+	/** Same as {@link #parseOverallSuccess(SpoonSummary)}, failed tests which passed when retried are ignored. */
+	private boolean parseSuccessWithRetries(SpoonSummary summary) {
+		for (Map.Entry<String, DeviceResult> result : summary.getResults().entrySet()) {
+			if (result.getValue().getInstallFailed()) {
+				return false;
+			}
+			if (!result.getValue().getExceptions().isEmpty() && result.getValue().getTestResults().isEmpty()) {
+				return false;
+			}
+			for (Map.Entry<DeviceTest, DeviceTestResult> test : result.getValue().getTestResults().entrySet()) {
+				if (test.getValue().getStatus() == Status.PASS) {
+					continue;
+				}
+				// Outcome of a retry is accounted for by the test it retries.
+				if (!IncrementalSpoonDeviceRunner.isRetry(test.getKey())
+						&& !forgiven.contains(forgivenKey(result.getKey(), test.getKey()))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static String forgivenKey(String safeSerial, DeviceTest test) {
+		return safeSerial + "/" + test.getClassName() + "#" + test.getMethodName();
+	}
+
+	/**
+	 * Durations of the tests measured in the previous runs and in this one.
+	 *
+	 * @return durations or {@code null} if the durations file is not set
+	 */
+	public TestDurations getTestDurations() {
+		return durations;
+	}
+
+	/** Time spent in the phases of this run, written next to the report when the run finishes. */
+	public RunMetrics getMetrics() {
+		return metrics;
+	}
+
+	/** Results of the tests finished so far. */
+	private SpoonSummary snapshot() {
+		SpoonSummary.Builder snapshot = new SpoonSummary.Builder().setTitle(title).start();
+		if (testSize != null) {
+			snapshot.setTestSize(testSize);
+		}
+		Map<String, IncrementalSpoonDeviceRunner> runners;
+		synchronized (testRunners) {
+			runners = new LinkedHashMap<String, IncrementalSpoonDeviceRunner>(testRunners);
+		}
+		for (Map.Entry<String, IncrementalSpoonDeviceRunner> testRunner : runners.entrySet()) {
+			snapshot.addResult(SpoonUtils.sanitizeSerial(testRunner.getKey()), testRunner.getValue().snapshot());
+		}
+		return snapshot.end().build();
+	}
+
+	/**
+	 * Tests which did not pass so far.
+	 *
+	 * @return test names in {@code className#methodName} format by device serial, retries are not included
+	 */
+	public Map<String, List<String>> getFailedTests() {
+		awaitInFlight(serials);
+		Map<String, List<String>> failed = new LinkedHashMap<String, List<String>>();
+		for (String serial : serials) {
+			List<String> tests = new ArrayList<String>();
+			for (DeviceTest test : testRunners.get(serial).getFailedTests()) {
+				tests.add(test.getClassName() + "#" + test.getMethodName());
+			}
+			if (!tests.isEmpty()) {
+				failed.put(serial, tests);
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Run a failed test once again on the device, which may be not the one it failed on.
+	 * Both results are kept in the report, the retry is named {@code <method>_retry<attempt>}. If the retry passes,
+	 * the original failure does not fail the run.
+	 * Retries on different devices may be executed at the same time.
+	 *
+	 * @param serial device to run the test on
+	 * @param failedSerial device the test failed on
+	 * @param attempt number of the retry, starting from 1
+	 * @return {@code true} if the test passed
+	 */
+	public boolean retryTest(String serial, String failedSerial, String className, String methodName, int attempt) {
+		awaitInFlight(Collections.singleton(serial));
+		logInfo("Retrying %s#%s failed on %s on %s, attempt %d.", className, methodName, failedSerial, serial, attempt);
+		IncrementalSpoonDeviceRunner testRunner = testRunners.get(serial);
+		RunMetrics.Timer timer = metrics.start(RunMetrics.RETRY, serial);
+		DeviceTest retry = testRunner.retry(className, methodName, attempt);
+		timer.stop();
+		requestLiveReport();
+		boolean passed = testRunner.isPassed(retry);
+		if (passed) {
+			forgiven.add(forgivenKey(SpoonUtils.sanitizeSerial(failedSerial), new DeviceTest(className, methodName)));
+		}
+		return passed;
+	}
+
+	/** Set digest of the test class bytecode with its superclasses, tests of the classes without digest are always run. */
+	public void setTestClassDigest(String className, String digest) {
+		classDigests.put(className, digest);
+	}
+
+	/** Put results of this run to the index replacing the previous ones. */
+	private void recordResults(String safeSerial, DeviceResult result) {
+		int reused = 0;
+		for (Map.Entry<DeviceTest, DeviceTestResult> entry : result.getTestResults().entrySet()) {
+			String test = entry.getKey().getClassName() + "#" + entry.getKey().getMethodName();
+			ResultIndex.Entry current = currentKeys.get(safeSerial, test);
+			if (current == null) {
+				continue;
+			}
+			if (current.reused) {
+				reused++;
+			}
+			previousResults.put(safeSerial, test,
+					new ResultIndex.Entry(current.key, entry.getValue().getStatus(), current.reused));
+		}
+		logInfo("[%s] Reused %d passed results from the previous runs.", safeSerial, reused);
+	}
+
+	/**
+	 * In incremental mode add the previous result of the test instead of running it if the test passed
+	 * against the same APKs, test class and device.
+	 *
+	 * @return {@code true} if the test should not be run
+	 */
+	private boolean reuseResult(String serial, IncrementalSpoonDeviceRunner testRunner, String className,
+			String methodName) {
+		if (!incremental || Strings.isNullOrEmpty(methodName)) {
+			return false;
+		}
+		String classDigest = classDigests.get(className);
+		if (classDigest == null) {
+			return false;
+		}
+		String safeSerial = SpoonUtils.sanitizeSerial(serial);
+		String test = className + "#" + methodName;
+		String key = Hashing.sha1().hashString(applicationDigest + ":" + instrumentationDigest + ":" + classDigest
+				+ ":" + serial + ":" + testRunner.getDeviceDetails().getModel(), Charsets.UTF_8).toString();
+		ResultIndex.Entry previous = previousResults.get(safeSerial, test);
+		boolean reuse = previous != null && key.equals(previous.key) && previous.status == Status.PASS;
+		currentKeys.put(safeSerial, test, new ResultIndex.Entry(key, null, reuse));
+		if (reuse) {
+			logDebug(debug, "[%s] Reusing passed result of %s", serial, test);
+			testRunner.reuse(new DeviceTest(className, methodName));
+		}
+		return reuse;
+	}
+
+	private static String digest(File file) {
+		try {
+			return Files.hash(file, Hashing.sha1()).toString();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read " + file, e);
+		}
 	}
 
 	public void runTests(final String className) {
@@ -131,62 +577,342 @@ public class IncrementalSpoonRunner {
     }
 
 	public void runTests(final String className, final String methodName) {
-		int targetCount = serials.size();
+		runTests(serials, className, methodName);
+	}
+
+	public void runTests(Collection<String> targets, final String className, final String methodName) {
+		int targetCount = targets.size();
         logInfo("Executing %s#%s on %d device(s).", className, methodName, targetCount);
 
-		if (testSize != null) {
-			summary.setTestSize(testSize);
-		}
+		dispatch(targets, new Execution() {
+			@Override
+			public void execute(String serial, IncrementalSpoonDeviceRunner testRunner) {
+				if (!reuseResult(serial, testRunner, className, methodName)) {
+					testRunner.run(className, methodName);
+				}
+			}
+		});
+	}
 
-		for (String serial : serials) {
+	/**
+	 * Execute several tests within a single instrumentation run.
+	 *
+	 * @param tests test names in {@code className#methodName} format
+	 */
+	public void runTests(Collection<String> targets, final List<String> tests) {
+		int targetCount = targets.size();
+		logInfo("Executing %d tests in one batch on %d device(s).", tests.size(), targetCount);
+		logDebug(debug, "Batch: %s", tests);
+
+		dispatch(targets, new Execution() {
+			@Override
+			public void execute(String serial, IncrementalSpoonDeviceRunner testRunner) {
+				List<String> toRun = new ArrayList<String>(tests.size());
+				for (String test : tests) {
+					String[] parts = test.split("#", 2);
+					if (!reuseResult(serial, testRunner, parts[0], parts[1])) {
+						toRun.add(test);
+					}
+				}
+				if (!toRun.isEmpty()) {
+					testRunner.run(toRun);
+				}
+			}
+		});
+	}
+
+	/** Execution of tests on a single device. */
+	private interface Execution {
+		void execute(String serial, IncrementalSpoonDeviceRunner testRunner);
+	}
+
+	/**
+	 * Execute tests on the devices.
+	 * Shards of the tests may be dispatched from several threads at the same time, each for its own devices.
+	 */
+	private void dispatch(Collection<String> targets, final Execution execution) {
+		for (final String serial : targets) {
+			final IncrementalSpoonDeviceRunner testRunner = testRunners.get(serial);
+			if (parallel) {
+				inFlight.put(serial, deviceExecutors.get(serial).submit(new Runnable() {
+					@Override
+					public void run() {
+						logDebug(debug, "[%s] Starting execution.", serial);
+						RunMetrics.Timer timer = metrics.start(RunMetrics.INSTRUMENTATION, serial);
+						execution.execute(serial, testRunner);
+						timer.stop();
+						logDebug(debug, "[%s] Execution done.", serial);
+						requestLiveReport();
+					}
+				}));
+				continue;
+			}
 			logDebug(debug, "[%s] Starting execution.", serial);
-			testRunners.get(serial).run(className, methodName);
+			RunMetrics.Timer timer = metrics.start(RunMetrics.INSTRUMENTATION, serial);
+			execution.execute(serial, testRunner);
+			timer.stop();
 			logDebug(debug, "[%s] Execution done.", serial);
+			requestLiveReport();
 		}
+	}
 
-		if (!debug) {
-			// Clean up anything in the work directory.
+	private void requestLiveReport() {
+		LiveReportRenderer renderer = liveReport;
+		if (renderer != null) {
+			renderer.requestRender();
+		}
+	}
+
+	public void render(SpoonSummary summary) {
+		ParallelHtmlRenderer renderer = new ParallelHtmlRenderer(SpoonUtils.GSON, output, RENDER_THREADS);
+		try {
+			renderer.render(summary);
+		} finally {
+			renderer.shutdown();
+		}
+	}
+
+	/**
+	 * Wait until all the tests dispatched to the specified devices are executed.
+	 * Devices process their own queues independently, so this has to be called before changing the state
+	 * of the devices.
+	 */
+	private void awaitInFlight(Collection<String> targets) {
+		// All the executions are waited for, so that no device is still running when a failure is thrown.
+		RuntimeException failure = null;
+		for (String serial : targets) {
+			for (Future<?> execution : inFlight.removeAll(serial)) {
+				try {
+					execution.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while waiting for tests execution", e);
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = new RuntimeException("Tests execution failed on " + serial, e.getCause());
+					}
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	public void clearData(String packageName) throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException, InterruptedException {
+		clearData(serials, packageName);
+	}
+
+	public void clearData(Collection<String> targets, final String packageName) throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException, InterruptedException {
+		awaitInFlight(targets);
+		executeOnDevices("ClearData", RunMetrics.CLEAR_DATA, "Clearing data of " + packageName, targets, new DeviceAction() {
+			@Override
+			public void execute(IDevice device) throws Exception {
+				CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+				device.executeShellCommand("pm clear " + packageName, receiver);
+				// 'pm clear' returns when the data is removed, the process is killed asynchronously though.
+				if (!receiver.getOutput().contains("Success")) {
+					logInfo("[%s] pm clear %s: %s", device.getSerialNumber(), packageName, receiver.getOutput().trim());
+				}
+				awaitProcessStopped(device, packageName);
+				refreshLogFilter(device);
+			}
+		});
+	}
+
+	public void forceStop(String packageName) throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException {
+		forceStop(serials, packageName);
+	}
+
+	public void forceStop(Collection<String> targets, final String packageName) throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException {
+		awaitInFlight(targets);
+		executeOnDevices("ForceStop", RunMetrics.FORCE_STOP, "Stopping " + packageName, targets, new DeviceAction() {
+			@Override
+			public void execute(IDevice device) throws Exception {
+				device.executeShellCommand("am force-stop " + packageName, new NullOutputReceiver());
+				awaitProcessStopped(device, packageName);
+				refreshLogFilter(device);
+			}
+		});
+	}
+
+	/** Drop the ids of the stopped processes from the log filter of the device, they may be reused. */
+	private void refreshLogFilter(IDevice device) {
+		IncrementalSpoonDeviceRunner testRunner = testRunners.get(device.getSerialNumber());
+		if (testRunner != null) {
+			testRunner.refreshLogFilter();
+		}
+	}
+
+	/** Action executed on a single device. */
+	private interface DeviceAction {
+		void execute(IDevice device) throws Exception;
+	}
+
+	/**
+	 * Execute the action on all the specified devices at the same time and wait until it is done everywhere.
+	 * Time the action took on every device is logged.
+	 *
+	 * @param type action type the total time is recorded for, see {@link #getActionCosts()}
+	 * @param phase phase the time on every device is recorded for, see {@link #getMetrics()}
+	 * @param name action description used in the logs
+	 */
+	private void executeOnDevices(String type, final String phase, String name, Collection<String> targets, final DeviceAction action)
+			throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException {
+		long start = System.currentTimeMillis();
+		Map<String, Future<Long>> executions = new LinkedHashMap<String, Future<Long>>();
+		for (final String serial : targets) {
+			executions.put(serial, actionExecutor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					long start = System.currentTimeMillis();
+					action.execute(deviceProvider.getDevice(serial));
+					long time = System.currentTimeMillis() - start;
+					metrics.record(phase, serial, time);
+					return time;
+				}
+			}));
+		}
+
+		StringBuilder latencies = new StringBuilder();
+		Throwable failure = null;
+		for (Map.Entry<String, Future<Long>> execution : executions.entrySet()) {
 			try {
-				FileUtils.deleteDirectory(new File(output, SpoonDeviceRunner.TEMP_DIR));
-			} catch (IOException ignored) {
+				long time = execution.getValue().get();
+				latencies.append(latencies.length() > 0 ? ", " : "").append(execution.getKey())
+						.append(" ").append(time).append(" ms");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(name + " interrupted", e);
+			} catch (ExecutionException e) {
+				logInfo("[%s] %s failed: %s", execution.getKey(), name, e.getCause());
+				if (failure == null) {
+					failure = e.getCause();
+				}
 			}
 		}
+		logInfo("%s took: %s", name, latencies);
+		recordActionCost(type, System.currentTimeMillis() - start);
 
+		if (failure != null) {
+			Throwables.propagateIfInstanceOf(failure, TimeoutException.class);
+			Throwables.propagateIfInstanceOf(failure, AdbCommandRejectedException.class);
+			Throwables.propagateIfInstanceOf(failure, ShellCommandUnresponsiveException.class);
+			Throwables.propagateIfInstanceOf(failure, IOException.class);
+			throw Throwables.propagate(failure);
+		}
 	}
 
-	public void render(SpoonSummary summary) {
-		new HtmlRenderer(summary, SpoonUtils.GSON, output).render();
+	private void recordActionCost(String type, long millis) {
+		synchronized (actionCosts) {
+			long[] cost = actionCosts.get(type);
+			if (cost == null) {
+				cost = new long[2];
+				actionCosts.put(type, cost);
+			}
+			cost[0] += millis;
+			cost[1]++;
+		}
 	}
 
-	public void clearData(String packageName) throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException, InterruptedException {
-		for (String serial : serials) {
-			IDevice device = obtainRealDevice(adb, serial);
-			device.executeShellCommand("pm clear " + packageName, new NullOutputReceiver());
-            Thread.sleep(2000);
+	/**
+	 * Average time of the actions performed on the devices during this run.
+	 *
+	 * @return time in milliseconds by action type: {@code ClearData}, {@code ForceStop} or {@code RestoreBackup}
+	 */
+	public Map<String, Long> getActionCosts() {
+		Map<String, Long> result = new HashMap<String, Long>();
+		synchronized (actionCosts) {
+			for (Map.Entry<String, long[]> cost : actionCosts.entrySet()) {
+				result.put(cost.getKey(), cost.getValue()[0] / cost.getValue()[1]);
+			}
 		}
+		return result;
 	}
 
-	public void forceStop(String packageName) throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException {
-		for (String serial : serials) {
-			IDevice device = obtainRealDevice(adb, serial);
-			device.executeShellCommand("am force-stop " + packageName, new NullOutputReceiver());
+	/** Poll the device until no process of the package is running. */
+	private void awaitProcessStopped(IDevice device, String packageName) throws Exception {
+		long deadline = System.currentTimeMillis() + PROCESS_STOP_TIMEOUT;
+		while (isProcessRunning(device, packageName)) {
+			if (System.currentTimeMillis() > deadline) {
+				logInfo("[%s] %s is still running after %d ms", device.getSerialNumber(), packageName,
+						PROCESS_STOP_TIMEOUT);
+				return;
+			}
+			Thread.sleep(PROCESS_POLL_INTERVAL);
 		}
 	}
 
+	private static boolean isProcessRunning(IDevice device, String packageName) throws Exception {
+		CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+		// Newer versions list processes of other users with '-A' only, older ones do not know the flag.
+		device.executeShellCommand("ps; ps -A 2>/dev/null", receiver);
+		for (String line : receiver.getOutput().split("\n")) {
+			String[] columns = line.trim().split("\\s+");
+			// Process name is the last column, processes of other components look like 'package:name'.
+			String process = columns[columns.length - 1];
+			if (process.equals(packageName) || process.startsWith(packageName + ":")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public void restoreBackup(String packageName, File backup) throws TimeoutException, AdbCommandRejectedException, SyncException, ShellCommandUnresponsiveException, IOException, InstallException {
+		restoreBackup(serials, packageName, backup);
+	}
+
+	public void restoreBackup(Collection<String> targets, final String packageName, final File backup) throws TimeoutException, AdbCommandRejectedException, SyncException, ShellCommandUnresponsiveException, IOException, InstallException {
 		checkNotNull(backupApk, "Backup APK is not defined");
 		checkArgument(backupApk.exists(), "Could not find backup APK: " + backupApk.getAbsolutePath());
 		checkNotNull(backup, "Backup file is not defined");
 		checkArgument(backup.exists(), "Could not find backup file: " + backup.getAbsolutePath());
-		for (String serial : serials) {
-			IDevice device = obtainRealDevice(adb, serial);
-			device.installPackage(backupApk.getAbsolutePath(), true);
-			String launcher = getLauncherComponent(device, packageName);
-			device.pushFile(backup.getAbsolutePath(), "/sdcard/" + backup.getName());
-			IShellOutputReceiver nullReceiver = new NullOutputReceiver();
-			device.executeShellCommand("am start -n " + launcher + " -e action RESTORE -e archive " + backup.getName(), nullReceiver);
-			device.executeShellCommand("while [ -f /sdcard/$archiveName ]; do sleep 1; done", nullReceiver);
+		awaitInFlight(targets);
+		String digest = backupDigests.get(backup);
+		if (digest == null) {
+			digest = digest(backup);
+			backupDigests.put(backup, digest);
 		}
+		final String cached = BACKUP_CACHE_DIR + "/" + digest;
+		final String archive = "/sdcard/" + backup.getName();
+		executeOnDevices("RestoreBackup", RunMetrics.RESTORE_BACKUP, "Restoring " + backup.getName(), targets, new DeviceAction() {
+			@Override
+			public void execute(IDevice device) throws Exception {
+				String serial = device.getSerialNumber();
+				// The backup APK shares the package of the application, which is installed back after every restore.
+				String error = device.installPackage(backupApk.getAbsolutePath(), true);
+				if (error != null) {
+					throw new InstallException(error, null);
+				}
+				if (!fileExists(device, cached)) {
+					// An interrupted push leaves the temporary file only, the cached archive is always complete.
+					device.executeShellCommand("mkdir -p " + BACKUP_CACHE_DIR, new NullOutputReceiver());
+					device.pushFile(backup.getAbsolutePath(), cached + ".tmp");
+					device.executeShellCommand("mv " + cached + ".tmp " + cached, new NullOutputReceiver());
+				} else {
+					logDebug(debug, "[%s] Using cached %s", serial, backup.getName());
+				}
+				// The restore activity deletes the archive when it is done.
+				device.executeShellCommand("cat " + cached + " > " + archive, new NullOutputReceiver());
+				String launcher = getLauncherComponent(device, packageName);
+				device.executeShellCommand("am start -n " + launcher + " -e action RESTORE -e archive "
+						+ backup.getName(), new NullOutputReceiver());
+				long deadline = System.currentTimeMillis() + RESTORE_TIMEOUT;
+				while (fileExists(device, archive)) {
+					if (System.currentTimeMillis() > deadline) {
+						throw new IOException("Backup " + backup.getName() + " is not restored in "
+								+ RESTORE_TIMEOUT + " ms on " + serial);
+					}
+					Thread.sleep(RESTORE_POLL_INTERVAL);
+				}
+			}
+		});
+	}
+
+	private static boolean fileExists(IDevice device, String path) throws Exception {
+		CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+		device.executeShellCommand("[ -f " + path + " ] && echo yes", receiver);
+		return receiver.getOutput().trim().equals("yes");
 	}
 
 	private String getLauncherComponent(IDevice device, String packageName) throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException {
@@ -215,7 +941,23 @@ public class IncrementalSpoonRunner {
 
 	private IncrementalSpoonDeviceRunner getTestRunner(String serial, SpoonInstrumentationInfo testInfo) {
 		return new IncrementalSpoonDeviceRunner(androidSdk, applicationApk, instrumentationApk, output, serial,
-				debug, noAnimations, adbTimeout, classpath, testInfo, testSize);
+				debug, noAnimations, adbTimeout, classpath, testInfo, testSize, screenshotStore, installer,
+				durations, streamLogs, getLogFilter(testInfo), metrics);
+	}
+
+	private boolean isLogFiltered() {
+		return !logTags.isEmpty() || logPriority != Log.LogLevel.VERBOSE || logAppOnly;
+	}
+
+	/** Filter of the log of a single device, the filter keeps track of the processes on the device. */
+	private LogCatFilter getLogFilter(SpoonInstrumentationInfo testInfo) {
+		if (!isLogFiltered()) {
+			return null;
+		}
+		List<String> packages = logAppOnly
+				? Arrays.asList(testInfo.getApplicationPackage(), testInfo.getInstrumentationPackage())
+				: Collections.<String>emptyList();
+		return new LogCatFilter(logTags, logPriority, packages);
 	}
 
 	/** Build a test suite for the specified devices and configuration. */
@@ -235,6 +977,20 @@ public class IncrementalSpoonRunner {
 		private IRemoteAndroidTestRunner.TestSize testSize;
 		private int adbTimeout;
 		private boolean failIfNoDeviceConnected;
+		private boolean parallel;
+		private int screenshotThreads = Runtime.getRuntime().availableProcessors();
+		private int installThreads = DEFAULT_INSTALL_THREADS;
+		private boolean deduplicateScreenshots;
+		private boolean incremental;
+		private boolean skipInstalledApks;
+		private File durationsFile;
+		private boolean streamLogs;
+		private boolean liveReport;
+		private List<String> logTags = Collections.emptyList();
+		private Log.LogLevel logPriority = Log.LogLevel.VERBOSE;
+		private boolean logAppOnly;
+		private DeviceProvider deviceProvider;
+		private SpoonInstrumentationInfo instrumentationInfo;
 
 		/** Identifying title for this execution. */
 		public Builder setTitle(String title) {
@@ -313,8 +1069,8 @@ public class IncrementalSpoonRunner {
 			if (this.serials != null) {
 				throw new IllegalStateException("Serial list already contains entries.");
 			}
-			if (this.androidSdk == null) {
-				throw new IllegalStateException("SDK must be set before calling this method.");
+			if (this.androidSdk == null && this.deviceProvider == null) {
+				throw new IllegalStateException("SDK or device provider must be set before calling this method.");
 			}
 			this.serials = new HashSet<String>();
 			return this;
@@ -347,9 +1103,102 @@ public class IncrementalSpoonRunner {
 			return this;
 		}
 
+		/** Number of threads converting and writing screenshots. */
+		public Builder setScreenshotThreads(int screenshotThreads) {
+			checkArgument(screenshotThreads > 0, "Number of screenshot threads must be positive.");
+			this.screenshotThreads = screenshotThreads;
+			return this;
+		}
+
+		/** Maximum number of devices the APKs are installed to at the same time. */
+		public Builder setInstallThreads(int installThreads) {
+			checkArgument(installThreads > 0, "Number of install threads must be positive.");
+			this.installThreads = installThreads;
+			return this;
+		}
+
+		/** Whether identical screenshots should be stored once. */
+		public Builder setDeduplicateScreenshots(boolean deduplicateScreenshots) {
+			this.deduplicateScreenshots = deduplicateScreenshots;
+			return this;
+		}
+
+		/** Whether tests which passed against the same APKs, test class and device should be skipped. */
+		public Builder setIncremental(boolean incremental) {
+			this.incremental = incremental;
+			return this;
+		}
+
+		/** Whether installation of the APKs the device already has should be skipped. */
+		public Builder setSkipInstalledApks(boolean skipInstalledApks) {
+			this.skipInstalledApks = skipInstalledApks;
+			return this;
+		}
+
+		/** File the test durations are kept in between the runs, durations are not recorded if not set. */
+		public Builder setDurationsFile(File durationsFile) {
+			this.durationsFile = durationsFile;
+			return this;
+		}
+
+		/** Whether the log of every test should be written to disk as soon as the test ends instead of kept in memory. */
+		public Builder setStreamLogs(boolean streamLogs) {
+			this.streamLogs = streamLogs;
+			return this;
+		}
+
+		/** Tags of the device log messages to keep, all the tags are kept if empty. */
+		public Builder setLogTags(Collection<String> logTags) {
+			checkNotNull(logTags, "Log tags cannot be null.");
+			this.logTags = new ArrayList<String>(logTags);
+			return this;
+		}
+
+		/** Minimum priority of the device log messages to keep: V, D, I, W, E or A. */
+		public Builder setLogPriority(String logPriority) {
+			checkNotNull(logPriority, "Log priority cannot be null.");
+			Log.LogLevel level = Log.LogLevel.getByLetterString(logPriority);
+			checkArgument(level != null, "Unknown log priority: " + logPriority);
+			this.logPriority = level;
+			return this;
+		}
+
+		/** Whether only the messages of the application and instrumentation processes should be kept. */
+		public Builder setLogAppOnly(boolean logAppOnly) {
+			this.logAppOnly = logAppOnly;
+			return this;
+		}
+
+		/** Whether the report should be updated while the tests are running. */
+		public Builder setLiveReport(boolean liveReport) {
+			this.liveReport = liveReport;
+			return this;
+		}
+
+		/** Source of the devices, devices connected through ADB of the SDK are used if not set. */
+		public Builder setDeviceProvider(DeviceProvider deviceProvider) {
+			checkNotNull(deviceProvider, "Device provider cannot be null.");
+			this.deviceProvider = deviceProvider;
+			return this;
+		}
+
+		/** Test APK manifest information, parsed from the instrumentation APK if not set. */
+		Builder setInstrumentationInfo(SpoonInstrumentationInfo instrumentationInfo) {
+			this.instrumentationInfo = instrumentationInfo;
+			return this;
+		}
+
+		/** Whether each test should be run on all the devices at the same time. */
+		public Builder setParallel(boolean parallel) {
+			this.parallel = parallel;
+			return this;
+		}
+
 		public IncrementalSpoonRunner build() {
-			checkNotNull(androidSdk, "SDK is required.");
-			checkArgument(androidSdk.exists(), "SDK path does not exist.");
+			if (deviceProvider == null) {
+				checkNotNull(androidSdk, "SDK is required.");
+				checkArgument(androidSdk.exists(), "SDK path does not exist.");
+			}
 			checkNotNull(applicationApk, "Application APK is required.");
 			checkNotNull(instrumentationApk, "Instrumentation APK is required.");
 			checkNotNull(output, "Output path is required.");
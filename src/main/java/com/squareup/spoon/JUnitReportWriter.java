@@ -0,0 +1,299 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Writes JUnit XML report test by test.
+ * Every test case is appended to a part file as one line as soon as the test ends, the report is assembled from it
+ * with the aggregate counts on {@link #close()}. If the run is interrupted, even by killing the JVM, the part file
+ * stays on disk and the report is recovered from it by the next run into {@value #INTERRUPTED_DIR}.
+ */
+final class JUnitReportWriter implements ITestRunListener {
+	static final String PART_SUFFIX = ".part";
+	/** Directory next to the reports the reports recovered from an interrupted run are written to. */
+	static final String INTERRUPTED_DIR = "interrupted";
+	private static final Pattern TIME = Pattern.compile("<testcase [^>]*time=\"([0-9.]+)\"");
+
+	private final File report;
+	private final File part;
+	private final String suiteName;
+	private final long timestamp = System.currentTimeMillis();
+	private Writer writer;
+	private TestIdentifier current;
+	private long currentStart;
+	private String failure;
+	private boolean error;
+	private boolean skipped;
+
+	/**
+	 * @param report report file
+	 * @param suiteName name of the test suite, device serial
+	 */
+	JUnitReportWriter(File report, String suiteName) {
+		this.report = report;
+		this.part = new File(report.getPath() + PART_SUFFIX);
+		this.suiteName = suiteName;
+	}
+
+	@Override
+	public synchronized void testRunStarted(String runName, int testCount) {
+		if (writer != null) {
+			return;
+		}
+		// Part file of an interrupted run would be truncated otherwise.
+		recover(report, interrupted(report));
+		try {
+			part.getParentFile().mkdirs();
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(part), Charsets.UTF_8));
+		} catch (IOException e) {
+			logInfo("Unable to create %s: %s", part, e.getMessage());
+		}
+	}
+
+	@Override
+	public synchronized void testStarted(TestIdentifier test) {
+		current = test;
+		currentStart = System.currentTimeMillis();
+		failure = null;
+		error = false;
+		skipped = false;
+	}
+
+	@Override
+	public synchronized void testFailed(TestIdentifier test, String trace) {
+		failure = trace;
+		// Same distinction as the one made by XmlTestRunListener.
+		error = trace != null && !trace.startsWith("junit.framework.AssertionFailedError")
+				&& !trace.startsWith("java.lang.AssertionError");
+	}
+
+	@Override
+	public synchronized void testAssumptionFailure(TestIdentifier test, String trace) {
+		skipped = true;
+	}
+
+	@Override
+	public synchronized void testIgnored(TestIdentifier test) {
+		skipped = true;
+	}
+
+	@Override
+	public synchronized void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+		if (writer == null || current == null) {
+			return;
+		}
+		double time = (System.currentTimeMillis() - currentStart) / 1000.0;
+		StringBuilder line = new StringBuilder("<testcase name=\"").append(escape(test.getTestName()))
+				.append("\" classname=\"").append(escape(test.getClassName()))
+				.append("\" time=\"").append(String.format(Locale.US, "%.3f", time)).append("\"");
+		if (failure != null) {
+			String element = error ? "error" : "failure";
+			line.append("><").append(element).append(">").append(escape(failure))
+					.append("</").append(element).append("></testcase>");
+		} else if (skipped) {
+			line.append("><skipped /></testcase>");
+		} else {
+			line.append(" />");
+		}
+		try {
+			writer.write(line.append('\n').toString());
+			writer.flush();
+		} catch (IOException e) {
+			logInfo("Unable to write %s: %s", part, e.getMessage());
+		}
+		current = null;
+	}
+
+	@Override
+	public void testRunFailed(String errorMessage) {
+	}
+
+	@Override
+	public void testRunStopped(long elapsedTime) {
+	}
+
+	@Override
+	public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+	}
+
+	/**
+	 * Add an error which prevented the tests from running, e.g. failed installation, as a test case.
+	 *
+	 * @param message error message, may be {@code null}
+	 */
+	synchronized void addError(String className, String name, String message) {
+		testRunStarted(suiteName, 0);
+		TestIdentifier test = new TestIdentifier(className, name);
+		testStarted(test);
+		failure = String.valueOf(message);
+		error = true;
+		testEnded(test, Collections.<String, String>emptyMap());
+	}
+
+	/** Assemble the report from the written test cases. */
+	synchronized void close() {
+		if (writer == null) {
+			// No test was run, the report is still written.
+			testRunStarted(suiteName, 0);
+		}
+		closeQuietly();
+		assemble(part, report, suiteName, timestamp);
+	}
+
+	private void closeQuietly() {
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.close();
+		} catch (IOException e) {
+			logInfo("Unable to close %s: %s", part, e.getMessage());
+		}
+	}
+
+	/**
+	 * Build a valid report from the part file left by an interrupted run.
+	 *
+	 * @param report report the part file belongs to
+	 * @param target file to write the recovered report to
+	 * @return {@code true} if there was a part file
+	 */
+	static boolean recover(File report, File target) {
+		File part = new File(report.getPath() + PART_SUFFIX);
+		if (!part.exists()) {
+			return false;
+		}
+		String name = report.getName().endsWith(".xml")
+				? report.getName().substring(0, report.getName().length() - 4) : report.getName();
+		target.getParentFile().mkdirs();
+		assemble(part, target, name, part.lastModified());
+		logInfo("Recovered report of an interrupted run: %s", target);
+		return true;
+	}
+
+	/**
+	 * Recover the reports of all the part files in the directory into {@value #INTERRUPTED_DIR}.
+	 *
+	 * @return number of the recovered reports
+	 */
+	static int recoverAll(File dir) {
+		File[] parts = dir.listFiles();
+		int recovered = 0;
+		if (parts == null) {
+			return recovered;
+		}
+		for (File part : parts) {
+			if (part.getName().endsWith(PART_SUFFIX)) {
+				File report = new File(dir, part.getName().substring(0, part.getName().length() - PART_SUFFIX.length()));
+				if (recover(report, interrupted(report))) {
+					recovered++;
+				}
+			}
+		}
+		return recovered;
+	}
+
+	private static File interrupted(File report) {
+		return new File(new File(report.getParentFile(), INTERRUPTED_DIR), report.getName());
+	}
+
+	private static void assemble(File part, File report, String suiteName, long timestamp) {
+		int tests = 0;
+		int failures = 0;
+		int errors = 0;
+		int skipped = 0;
+		double time = 0;
+		try {
+			List<String> lines = Files.readLines(part, Charsets.UTF_8);
+			for (String line : lines) {
+				// Line written partially by an interrupted run is dropped.
+				if (!line.endsWith("/>") && !line.endsWith("</testcase>")) {
+					continue;
+				}
+				tests++;
+				if (line.contains("><failure>")) {
+					failures++;
+				} else if (line.contains("><error>")) {
+					errors++;
+				} else if (line.endsWith("<skipped /></testcase>")) {
+					skipped++;
+				}
+				Matcher matcher = TIME.matcher(line);
+				if (matcher.find()) {
+					time += Double.parseDouble(matcher.group(1));
+				}
+			}
+
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+			Writer writer = Files.newWriter(report, Charsets.UTF_8);
+			try {
+				writer.write("<?xml version='1.0' encoding='UTF-8' ?>\n");
+				writer.write(String.format(Locale.US, "<testsuite name=\"%s\" tests=\"%d\" failures=\"%d\" errors=\"%d\" "
+						+ "skipped=\"%d\" time=\"%.3f\" timestamp=\"%s\" hostname=\"%s\">\n", escape(suiteName), tests,
+						failures, errors, skipped, time, format.format(new Date(timestamp)), escape(hostName())));
+				writer.write("<properties />\n");
+				for (String line : lines) {
+					if (line.endsWith("/>") || line.endsWith("</testcase>")) {
+						writer.write(line);
+						writer.write('\n');
+					}
+				}
+				writer.write("</testsuite>\n");
+			} finally {
+				writer.close();
+			}
+			if (!part.delete()) {
+				logInfo("Unable to delete %s", part);
+			}
+		} catch (IOException e) {
+			logInfo("Unable to write %s: %s", report, e.getMessage());
+		}
+	}
+
+	private static String hostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			return "localhost";
+		}
+	}
+
+	/** Escape XML text, line breaks are escaped too so that every test case stays on a single line. */
+	private static String escape(String value) {
+		if (value == null) {
+			return "";
+		}
+		StringBuilder result = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '&': result.append("&amp;"); break;
+				case '<': result.append("&lt;"); break;
+				case '>': result.append("&gt;"); break;
+				case '"': result.append("&quot;"); break;
+				case '\'': result.append("&apos;"); break;
+				case '\n': result.append("&#10;"); break;
+				case '\r': result.append("&#13;"); break;
+				default:
+					// Control characters are not allowed in XML 1.0.
+					if (c >= 0x20 || c == '\t') {
+						result.append(c);
+					}
+			}
+		}
+		return result.toString();
+	}
+
+}
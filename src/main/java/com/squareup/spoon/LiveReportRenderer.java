@@ -0,0 +1,92 @@
+package com.squareup.spoon;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.squareup.spoon.html.ParallelHtmlRenderer;
+
+import java.io.File;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Renders the report in background while the tests are running, so that results of the finished tests can be
+ * looked at before the whole run ends.
+ * Each render writes the pages of the tests finished since the previous one, see {@link ParallelHtmlRenderer#update}.
+ * Renders are throttled: the next one starts not earlier than the interval after the previous one. The interval
+ * grows with the time the rendering takes, so that rendering of a large report does not slow down the run.
+ */
+final class LiveReportRenderer {
+	/** Source of the results rendered. */
+	interface Snapshot {
+		SpoonSummary take();
+	}
+
+	private final ParallelHtmlRenderer renderer;
+	private final long interval;
+	private final Snapshot snapshot;
+	private final boolean debug;
+	private final ScheduledThreadPoolExecutor executor;
+	private boolean scheduled;
+	private long nextRender;
+
+	/**
+	 * @param output report directory
+	 * @param interval minimum time between the renders in milliseconds
+	 * @param threads number of pages rendered at the same time
+	 */
+	LiveReportRenderer(File output, long interval, int threads, Snapshot snapshot, boolean debug) {
+		renderer = new ParallelHtmlRenderer(SpoonUtils.GSON, output, threads);
+		this.interval = interval;
+		this.snapshot = snapshot;
+		this.debug = debug;
+		executor = new ScheduledThreadPoolExecutor(1,
+				new ThreadFactoryBuilder().setNameFormat("spoon-report-%d").setDaemon(true).build());
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+
+	/** Render the report as soon as the throttling allows, requests made before the render are merged. */
+	synchronized void requestRender() {
+		if (scheduled || executor.isShutdown()) {
+			return;
+		}
+		scheduled = true;
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				render();
+			}
+		}, Math.max(0, nextRender - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	private void render() {
+		synchronized (this) {
+			scheduled = false;
+		}
+		long start = System.currentTimeMillis();
+		try {
+			renderer.update(snapshot.take());
+		} catch (Exception e) {
+			logInfo("Unable to render the report: %s", e);
+		}
+		long duration = System.currentTimeMillis() - start;
+		logDebug(debug, "Report rendered in %d ms", duration);
+		synchronized (this) {
+			nextRender = System.currentTimeMillis() + Math.max(interval, 2 * duration);
+		}
+	}
+
+	/** Drop the pending render and wait for the one in progress. */
+	void stop() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			renderer.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Filter of the device log, used by a single device.
+ * Tags and priority are passed to logcat as a filterspec, so the rest of the messages never leave the device.
+ * Processes are filtered on the host by their ids. Every test is a new instrumentation run in a new process,
+ * so the runner looks the ids up on the device with {@link #refresh(IDevice)} when a process is started or stopped,
+ * the reader only compares the messages against them. Logcat can't follow them with {@code --pid}, it
+ * filters by a single process and would drop the start of the next test.
+ */
+final class LogCatFilter {
+	/** Tag of the instrumentation messages marking test boundaries, they are always needed. */
+	private static final String TEST_RUNNER = "TestRunner";
+
+	private final List<String> tags;
+	private final LogLevel priority;
+	private final List<String> packages;
+	/** Ids of the processes of the packages, replaced as a whole when they are looked up again. */
+	private volatile Set<String> pids = Collections.emptySet();
+
+	/**
+	 * @param tags tags to keep, all the tags are kept if empty
+	 * @param priority minimum priority of the messages to keep
+	 * @param packages packages whose processes messages are kept, all the processes are kept if empty
+	 */
+	LogCatFilter(Collection<String> tags, LogLevel priority, Collection<String> packages) {
+		this.tags = new ArrayList<String>(tags);
+		this.priority = priority;
+		this.packages = new ArrayList<String>(packages);
+	}
+
+	/** Arguments of the logcat command. */
+	String getFilterSpec() {
+		StringBuilder spec = new StringBuilder();
+		String level = String.valueOf(priority.getPriorityLetter());
+		if (tags.isEmpty()) {
+			spec.append("*:").append(level);
+		} else {
+			for (String tag : tags) {
+				spec.append(tag).append(':').append(level).append(' ');
+			}
+			spec.append("*:S");
+		}
+		if (priority.getPriority() > LogLevel.INFO.getPriority() || !tags.isEmpty() && !tags.contains(TEST_RUNNER)) {
+			spec.append(' ').append(TEST_RUNNER).append(":I");
+		}
+		return spec.toString();
+	}
+
+	/**
+	 * Whether the message received from the device should be kept.
+	 * Called by the log reader for every message, so the processes are never looked up here.
+	 */
+	boolean accept(LogCatMessage message) {
+		if (packages.isEmpty()) {
+			return true;
+		}
+		String pid = String.valueOf(message.getPid()).trim();
+		if (TEST_RUNNER.equals(message.getTag())) {
+			if (message.getMessage().startsWith("started: ") && !pids.contains(pid)) {
+				// The test runs in the process which logged its start, it may be logged before the lookup ends.
+				Set<String> started = new HashSet<String>(pids);
+				started.add(pid);
+				pids = started;
+			}
+			return true;
+		}
+		return pids.contains(pid);
+	}
+
+	/**
+	 * Look up ids of the processes of the packages running on the device, including the other components.
+	 * Has to be called when the processes are started or stopped, ids of the stopped ones may be reused.
+	 */
+	void refresh(IDevice device) {
+		if (packages.isEmpty()) {
+			return;
+		}
+		CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+		try {
+			// Newer versions list processes of other users with '-A' only, older ones do not know the flag.
+			device.executeShellCommand("ps; ps -A 2>/dev/null", receiver);
+		} catch (Exception e) {
+			logInfo("[%s] Unable to list processes: %s", device.getSerialNumber(), e.getMessage());
+			return;
+		}
+		Set<String> found = new HashSet<String>();
+		for (String line : receiver.getOutput().split("\n")) {
+			String[] columns = line.trim().split("\\s+");
+			if (columns.length < 2) {
+				continue;
+			}
+			// Columns are 'USER PID PPID ... NAME', processes of other components look like 'package:name'.
+			String process = columns[columns.length - 1];
+			for (String packageName : packages) {
+				if (process.equals(packageName) || process.startsWith(packageName + ":")) {
+					found.add(columns[1]);
+				}
+			}
+		}
+		pids = found;
+	}
+
+}
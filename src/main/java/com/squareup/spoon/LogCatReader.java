@@ -0,0 +1,73 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.logcat.LogCatListener;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.logcat.LogCatMessageParser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Reads the device log like {@code LogCatReceiverTask} does, applying the filter on the device and on the host.
+ */
+final class LogCatReader implements Runnable {
+	private static final String LOGCAT_COMMAND = "logcat -v long";
+
+	private final IDevice device;
+	private final LogCatFilter filter;
+	private final LogCatListener listener;
+	private final LogCatMessageParser parser = new LogCatMessageParser();
+	private volatile boolean cancelled;
+
+	/**
+	 * @param filter filter of the messages or {@code null} to read the whole log
+	 */
+	LogCatReader(IDevice device, LogCatFilter filter, LogCatListener listener) {
+		this.device = device;
+		this.filter = filter;
+		this.listener = listener;
+	}
+
+	@Override
+	public void run() {
+		String command = filter != null ? LOGCAT_COMMAND + " " + filter.getFilterSpec() : LOGCAT_COMMAND;
+		try {
+			device.executeShellCommand(command, new MultiLineReceiver() {
+				@Override
+				public void processNewLines(String[] lines) {
+					List<LogCatMessage> messages = parser.processLogLines(lines, device);
+					if (filter != null) {
+						List<LogCatMessage> accepted = new ArrayList<LogCatMessage>(messages.size());
+						for (LogCatMessage message : messages) {
+							if (filter.accept(message)) {
+								accepted.add(message);
+							}
+						}
+						messages = accepted;
+					}
+					if (!messages.isEmpty()) {
+						listener.log(messages);
+					}
+				}
+
+				@Override
+				public boolean isCancelled() {
+					return cancelled;
+				}
+			}, 0);
+		} catch (Exception e) {
+			if (!cancelled) {
+				logInfo("[%s] Reading logcat failed: %s", device.getSerialNumber(), e.getMessage());
+			}
+		}
+	}
+
+	void stop() {
+		cancelled = true;
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.RawImage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Converts framebuffer contents to {@link BufferedImage} writing pixels straight into the image data buffer.
+ * The image is reused while consecutive frames have the same size, so a converter must not be shared
+ * between threads and a returned image is valid only until the next {@link #convert(RawImage)} call.
+ */
+final class RawImageConverter {
+	/** RGB_565 value to RGB pixel mapping, built on first use. */
+	private static int[] rgb565Table;
+
+	private BufferedImage image;
+
+	BufferedImage convert(RawImage raw) {
+		if (image == null || image.getWidth() != raw.width || image.getHeight() != raw.height) {
+			image = new BufferedImage(raw.width, raw.height, BufferedImage.TYPE_INT_RGB);
+		}
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		int count = raw.width * raw.height;
+		if (raw.bpp == 32 && isByteAligned(raw)) {
+			convert8888(raw, pixels, count);
+		} else if (raw.bpp == 16 && isRgb565(raw)) {
+			convert565(raw, pixels, count);
+		} else {
+			convertGeneric(raw, pixels, count);
+		}
+		return image;
+	}
+
+	/** Every channel occupies its own byte, e.g. RGBA_8888 or BGRA_8888. */
+	private static boolean isByteAligned(RawImage raw) {
+		return raw.red_length == 8 && raw.green_length == 8 && raw.blue_length == 8
+				&& raw.red_offset % 8 == 0 && raw.green_offset % 8 == 0 && raw.blue_offset % 8 == 0;
+	}
+
+	private static boolean isRgb565(RawImage raw) {
+		return raw.red_offset == 11 && raw.red_length == 5
+				&& raw.green_offset == 5 && raw.green_length == 6
+				&& raw.blue_offset == 0 && raw.blue_length == 5;
+	}
+
+	private static void convert8888(RawImage raw, int[] pixels, int count) {
+		byte[] data = raw.data;
+		// Pixel values are little endian, so a channel offset in bits maps to a byte position.
+		int r = raw.red_offset >> 3;
+		int g = raw.green_offset >> 3;
+		int b = raw.blue_offset >> 3;
+		for (int i = 0, index = 0; i < count; i++, index += 4) {
+			pixels[i] = (data[index + r] & 0xff) << 16 | (data[index + g] & 0xff) << 8 | (data[index + b] & 0xff);
+		}
+	}
+
+	private static void convert565(RawImage raw, int[] pixels, int count) {
+		int[] table = getRgb565Table();
+		byte[] data = raw.data;
+		for (int i = 0, index = 0; i < count; i++, index += 2) {
+			pixels[i] = table[(data[index] & 0xff) | (data[index + 1] & 0xff) << 8];
+		}
+	}
+
+	private static void convertGeneric(RawImage raw, int[] pixels, int count) {
+		int bytesPerPixel = raw.bpp >> 3;
+		for (int i = 0, index = 0; i < count; i++, index += bytesPerPixel) {
+			pixels[i] = raw.getARGB(index);
+		}
+	}
+
+	private static synchronized int[] getRgb565Table() {
+		if (rgb565Table == null) {
+			int[] table = new int[1 << 16];
+			for (int value = 0; value < table.length; value++) {
+				int r = (value >>> 11 & 0x1f) << 3;
+				int g = (value >>> 5 & 0x3f) << 2;
+				int b = (value & 0x1f) << 3;
+				table[value] = r << 16 | g << 8 | b;
+			}
+			rgb565Table = table;
+		}
+		return rgb565Table;
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.squareup.spoon;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Results of the previous runs by device and test, used to skip tests which already passed against the same build.
+ * Every result is stored with a key made of the APKs, the test class and the device it was obtained with.
+ */
+final class ResultIndex {
+	static final String FILE = "result-index.json";
+
+	/** Result of a single test on a single device. */
+	static final class Entry {
+		final String key;
+		final DeviceTestResult.Status status;
+		/** Whether the result was carried from a previous run instead of running the test. */
+		final boolean reused;
+
+		Entry(String key, DeviceTestResult.Status status, boolean reused) {
+			this.key = key;
+			this.status = status;
+			this.reused = reused;
+		}
+	}
+
+	/** Entries by device serial and test name. */
+	private final Map<String, Map<String, Entry>> devices = new TreeMap<String, Map<String, Entry>>();
+
+	synchronized Entry get(String serial, String test) {
+		Map<String, Entry> device = devices.get(serial);
+		return device != null ? device.get(test) : null;
+	}
+
+	synchronized void put(String serial, String test, Entry entry) {
+		Map<String, Entry> device = devices.get(serial);
+		if (device == null) {
+			device = new TreeMap<String, Entry>();
+			devices.put(serial, device);
+		}
+		device.put(test, entry);
+	}
+
+	/** Read the index, an empty index is returned if there is no file. */
+	static ResultIndex read(File file) {
+		if (!file.exists()) {
+			return new ResultIndex();
+		}
+		try {
+			ResultIndex index = SpoonUtils.GSON.fromJson(FileUtils.readFileToString(file, "UTF-8"), ResultIndex.class);
+			return index != null ? index : new ResultIndex();
+		} catch (Exception e) {
+			SpoonLogger.logInfo("Ignoring unreadable result index %s: %s", file, e.getMessage());
+			return new ResultIndex();
+		}
+	}
+
+	synchronized void write(File file) {
+		try {
+			FileUtils.writeStringToFile(file, SpoonUtils.GSON.toJson(this), "UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to write result index " + file, e);
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+package com.squareup.spoon;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Time spent in the phases of a run, by phase and device.
+ * Written to {@link #FILE} next to the report, so that changes of the test infrastructure performance can be tracked.
+ */
+public final class RunMetrics {
+	public static final String FILE = "metrics.json";
+
+	public static final String SCAN = "scan";
+	public static final String SORT = "sort";
+	public static final String INSTALL = "install";
+	public static final String CLEAR_DATA = "clearData";
+	public static final String FORCE_STOP = "forceStop";
+	public static final String RESTORE_BACKUP = "restoreBackup";
+	public static final String INSTRUMENTATION = "instrumentation";
+	public static final String RETRY = "retry";
+	public static final String SCREENSHOT_FETCH = "screenshotFetch";
+	public static final String SCREENSHOT_CONVERT = "screenshotConvert";
+	public static final String SCREENSHOT_ENCODE = "screenshotEncode";
+	public static final String LOGCAT = "logcat";
+	public static final String FINISH = "finish";
+	public static final String RENDER = "render";
+
+	/** Device name used for the phases which are not related to a single device. */
+	private static final String ALL_DEVICES = "all";
+
+	/** Durations in milliseconds by phase and device. */
+	private final Map<String, Map<String, List<Long>>> samples = new LinkedHashMap<String, Map<String, List<Long>>>();
+
+	/**
+	 * Record the time of a phase.
+	 *
+	 * @param device device serial or {@code null} if the phase is not related to a single device
+	 */
+	public synchronized void record(String phase, String device, long millis) {
+		Map<String, List<Long>> devices = samples.get(phase);
+		if (devices == null) {
+			devices = new TreeMap<String, List<Long>>();
+			samples.put(phase, devices);
+		}
+		String key = device != null ? device : ALL_DEVICES;
+		List<Long> durations = devices.get(key);
+		if (durations == null) {
+			durations = new ArrayList<Long>();
+			devices.put(key, durations);
+		}
+		durations.add(millis);
+	}
+
+	/** Start timing of a phase. */
+	public Timer start(String phase, String device) {
+		return new Timer(phase, device);
+	}
+
+	/** Running measurement of a phase. */
+	public final class Timer {
+		private final String phase;
+		private final String device;
+		private final long start = System.currentTimeMillis();
+
+		private Timer(String phase, String device) {
+			this.phase = phase;
+			this.device = device;
+		}
+
+		/** Record the time passed since the start. */
+		public void stop() {
+			record(phase, device, System.currentTimeMillis() - start);
+		}
+	}
+
+	/** Log totals of every phase. */
+	public synchronized void logSummary() {
+		logInfo("%-20s %8s %10s %8s %8s", "Phase", "Count", "Total, ms", "Mean", "P90");
+		for (Map.Entry<String, Map<String, List<Long>>> phase : samples.entrySet()) {
+			Stats stats = new Stats(all(phase.getValue()));
+			logInfo("%-20s %8d %10d %8d %8d", phase.getKey(), stats.count, stats.total, stats.mean, stats.p90);
+		}
+	}
+
+	/** Write the metrics as JSON. */
+	public synchronized void write(File file) {
+		Map<String, Object> phases = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Map<String, List<Long>>> phase : samples.entrySet()) {
+			Map<String, Object> devices = new LinkedHashMap<String, Object>();
+			for (Map.Entry<String, List<Long>> device : phase.getValue().entrySet()) {
+				devices.put(device.getKey(), new Stats(device.getValue()));
+			}
+			Map<String, Object> entry = new LinkedHashMap<String, Object>();
+			entry.put("total", new Stats(all(phase.getValue())));
+			entry.put("devices", devices);
+			phases.put(phase.getKey(), entry);
+		}
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("timestamp", System.currentTimeMillis());
+		metrics.put("phases", phases);
+		try {
+			FileUtils.writeStringToFile(file, SpoonUtils.GSON.toJson(metrics), "UTF-8");
+		} catch (IOException e) {
+			logInfo("Unable to write metrics %s: %s", file, e.getMessage());
+		}
+	}
+
+	private static List<Long> all(Map<String, List<Long>> devices) {
+		List<Long> result = new ArrayList<Long>();
+		for (List<Long> durations : devices.values()) {
+			result.addAll(durations);
+		}
+		return result;
+	}
+
+	/** Statistics of a phase serialized to JSON, all the times are in milliseconds. */
+	static final class Stats {
+		final int count;
+		final long total;
+		final long mean;
+		final long p50;
+		final long p90;
+		final long p99;
+		final long max;
+
+		Stats(List<Long> durations) {
+			List<Long> sorted = new ArrayList<Long>(durations);
+			Collections.sort(sorted);
+			count = sorted.size();
+			long sum = 0;
+			for (long duration : sorted) {
+				sum += duration;
+			}
+			total = sum;
+			mean = count > 0 ? sum / count : 0;
+			p50 = percentile(sorted, 0.5);
+			p90 = percentile(sorted, 0.9);
+			p99 = percentile(sorted, 0.99);
+			max = count > 0 ? sorted.get(count - 1) : 0;
+		}
+
+		private static long percentile(List<Long> sorted, double percentile) {
+			if (sorted.isEmpty()) {
+				return 0;
+			}
+			return sorted.get(Math.max(0, (int) Math.ceil(sorted.size() * percentile) - 1));
+		}
+	}
+
+}
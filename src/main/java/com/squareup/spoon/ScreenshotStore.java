@@ -0,0 +1,108 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.RawImage;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps track of the screenshots taken on all the devices.
+ * <p>
+ * When deduplication is enabled frames are stored by their content hash under {@value #FRAMES_DIR},
+ * so identical frames taken within a run, even on different devices, are encoded and written once.
+ * Results of the tests refer to the frames directly, see {@link #awaitScreenshot(String, DeviceTest)}.
+ * </p>
+ */
+final class ScreenshotStore {
+	static final String FRAMES_DIR = "frames";
+
+	private final File imageDir;
+	private final ScreenshotWriter writer;
+	private final boolean deduplicate;
+	/** Frames by content hash. */
+	private final ConcurrentMap<String, Future<File>> frames = new ConcurrentHashMap<String, Future<File>>();
+	/** Screenshots by device and test. */
+	private final ConcurrentMap<String, Future<File>> screenshots = new ConcurrentHashMap<String, Future<File>>();
+
+	ScreenshotStore(File imageDir, ScreenshotWriter writer, boolean deduplicate) {
+		this.imageDir = imageDir;
+		this.writer = writer;
+		this.deduplicate = deduplicate;
+	}
+
+	/**
+	 * Schedule writing of the test screenshot.
+	 *
+	 * @param file file to write the screenshot to when deduplication is disabled
+	 */
+	void store(String serial, DeviceTest test, RawImage screenshot, File file) {
+		Future<File> result;
+		if (deduplicate) {
+			String hash = hash(screenshot);
+			FutureTask<File> task = writer.newTask(serial, screenshot,
+					new File(new File(imageDir, FRAMES_DIR), hash + ".png"));
+			result = frames.putIfAbsent(hash, task);
+			if (result == null) {
+				writer.execute(task);
+				result = task;
+			}
+		} else {
+			result = writer.write(serial, screenshot, file);
+		}
+		screenshots.put(key(serial, test), result);
+	}
+
+	/** Wait for the test screenshot to be written. Returns {@code null} if there is no screenshot. */
+	File awaitScreenshot(String serial, DeviceTest test) {
+		String key = key(serial, test);
+		Future<File> screenshot = screenshots.get(key);
+		return screenshot != null ? await(key, screenshot) : null;
+	}
+
+	/** Wait for all the screenshots to be written. */
+	void close() {
+		writer.shutdown();
+		if (deduplicate) {
+			SpoonLogger.logInfo("Stored %d unique frames for %d screenshots", frames.size(), screenshots.size());
+		}
+	}
+
+	/**
+	 * @param key device and test of the screenshot, used in the log
+	 * @return the written file or {@code null} if the screenshot could not be written
+	 */
+	private static File await(String key, Future<File> screenshot) {
+		try {
+			return screenshot.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			String[] parts = key.split("/", 2);
+			SpoonLogger.logInfo("[%s] Unable to write screenshot of %s: %s", parts[0], parts[1], e.getCause());
+			return null;
+		}
+	}
+
+	private static String key(String serial, DeviceTest test) {
+		return SpoonUtils.sanitizeSerial(serial) + "/" + test.getClassName() + "#" + test.getMethodName();
+	}
+
+	private static String hash(RawImage screenshot) {
+		Hasher hasher = Hashing.murmur3_128().newHasher()
+				.putInt(screenshot.width)
+				.putInt(screenshot.height)
+				.putInt(screenshot.bpp)
+				.putInt(screenshot.red_offset).putInt(screenshot.red_length)
+				.putInt(screenshot.green_offset).putInt(screenshot.green_length)
+				.putInt(screenshot.blue_offset).putInt(screenshot.blue_length);
+		return hasher.putBytes(screenshot.data).hash().toString();
+	}
+
+}
@@ -0,0 +1,106 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.RawImage;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.*;
+
+/**
+ * Converts and encodes screenshots on a bounded pool of background threads.
+ * When the queue is full the calling thread waits for a free slot, the frames are never processed on it.
+ */
+final class ScreenshotWriter {
+	private final ThreadPoolExecutor executor;
+	private final RunMetrics metrics;
+
+	/** Background thread with its own converter, the converter keeps buffers between the frames. */
+	private static final class WriterThread extends Thread {
+		final RawImageConverter converter = new RawImageConverter();
+
+		WriterThread(Runnable runnable) {
+			super(runnable);
+		}
+	}
+
+	/** Puts the task to the queue waiting until there is a free slot. */
+	private static final class BlockingPolicy implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("Screenshot writer is shut down");
+			}
+			try {
+				executor.getQueue().put(task);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted while waiting for the screenshot queue", e);
+			}
+		}
+	}
+
+	/**
+	 * @param threads number of background threads
+	 * @param queueSize maximum number of raw frames waiting to be processed
+	 * @param metrics metrics the conversion and encoding time is recorded to
+	 */
+	ScreenshotWriter(int threads, int queueSize, RunMetrics metrics) {
+		this.metrics = metrics;
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize),
+				new ThreadFactoryBuilder().setNameFormat("spoon-screenshot-%d").setDaemon(true)
+						.setThreadFactory(new ThreadFactory() {
+							@Override
+							public Thread newThread(Runnable runnable) {
+								return new WriterThread(runnable);
+							}
+						}).build(),
+				new BlockingPolicy());
+	}
+
+	/**
+	 * Schedule conversion of the frame and writing it as PNG to the output file.
+	 *
+	 * @param serial serial of the device the frame was taken on, the time is recorded for it
+	 */
+	Future<File> write(String serial, RawImage screenshot, File output) {
+		FutureTask<File> task = newTask(serial, screenshot, output);
+		execute(task);
+		return task;
+	}
+
+	/** Create a task converting the frame and writing it as PNG, the task is not scheduled. */
+	FutureTask<File> newTask(final String serial, final RawImage screenshot, final File output) {
+		return new FutureTask<File>(new Callable<File>() {
+			@Override
+			public File call() throws IOException {
+				output.getParentFile().mkdirs();
+				RunMetrics.Timer convert = metrics.start(RunMetrics.SCREENSHOT_CONVERT, serial);
+				BufferedImage image = ((WriterThread) Thread.currentThread()).converter.convert(screenshot);
+				convert.stop();
+				RunMetrics.Timer encode = metrics.start(RunMetrics.SCREENSHOT_ENCODE, serial);
+				ImageIO.write(image, "png", output);
+				encode.stop();
+				return output;
+			}
+		});
+	}
+
+	void execute(FutureTask<File> task) {
+		executor.execute(task);
+	}
+
+	/** Wait for the scheduled screenshots and stop the threads. */
+	void shutdown() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
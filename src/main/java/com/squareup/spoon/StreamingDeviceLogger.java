@@ -0,0 +1,198 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatListener;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.SoftReference;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Device logger writing the messages of every test to a separate file as soon as the test ends.
+ * Unlike {@link SpoonDeviceLogger} it keeps only the index of the files in memory, the messages are read back
+ * when the report needs them.
+ */
+final class StreamingDeviceLogger implements LogCatListener {
+	private static final String TEST_RUNNER = "TestRunner";
+	private static final Pattern MESSAGE_START = Pattern.compile("started: ([^(]+)\\(([^)]+)\\)");
+	private static final Pattern MESSAGE_END = Pattern.compile("finished: [^(]+\\([^)]+\\)");
+
+	private final File dir;
+	private final LogCatReader logCatReader;
+	/** Logs of every run of the tests, in the order of the runs. */
+	private final Map<DeviceTest, List<List<LogCatMessage>>> logs =
+			new LinkedHashMap<DeviceTest, List<List<LogCatMessage>>>();
+	private int files;
+	private DeviceTest currentTest;
+	private File currentFile;
+	private Writer currentWriter;
+	private int currentCount;
+
+	/**
+	 * @param device device to read the log from
+	 * @param dir directory the log files are written to
+	 * @param filter filter of the messages or {@code null} to keep the whole log
+	 */
+	StreamingDeviceLogger(IDevice device, File dir, LogCatFilter filter) {
+		this.dir = dir;
+		dir.mkdirs();
+		logCatReader = new LogCatReader(device, filter, this);
+		new Thread(logCatReader, "spoon-logcat-" + device.getSerialNumber()).start();
+	}
+
+	@Override
+	public synchronized void log(List<LogCatMessage> messages) {
+		for (LogCatMessage message : messages) {
+			try {
+				if (currentTest == null) {
+					if (TEST_RUNNER.equals(message.getTag())) {
+						Matcher match = MESSAGE_START.matcher(message.getMessage());
+						if (match.matches()) {
+							startTest(new DeviceTest(match.group(2), match.group(1)));
+							write(message);
+						}
+					}
+				} else {
+					write(message);
+					if (TEST_RUNNER.equals(message.getTag()) && MESSAGE_END.matcher(message.getMessage()).matches()) {
+						endTest();
+					}
+				}
+			} catch (IOException e) {
+				logInfo("Unable to write log of %s: %s", currentTest, e.getMessage());
+				abortTest();
+			}
+		}
+	}
+
+	/**
+	 * Stop reading the log and return the logs of every run of the tests, in the order of the runs.
+	 * Messages of a run are read on the first access.
+	 */
+	synchronized Map<DeviceTest, List<List<LogCatMessage>>> getLogs() {
+		logCatReader.stop();
+		if (currentTest != null) {
+			try {
+				endTest();
+			} catch (IOException e) {
+				logInfo("Unable to write log of %s: %s", currentTest, e.getMessage());
+			}
+		}
+		return new LinkedHashMap<DeviceTest, List<List<LogCatMessage>>>(logs);
+	}
+
+	private void startTest(DeviceTest test) throws IOException {
+		currentTest = test;
+		currentFile = new File(dir, files++ + ".log");
+		currentWriter = new BufferedWriter(Files.newWriter(currentFile, Charsets.UTF_8));
+		currentCount = 0;
+	}
+
+	private void write(LogCatMessage message) throws IOException {
+		currentWriter.write(message.getLogLevel().name());
+		for (String field : Arrays.asList(String.valueOf(message.getPid()), String.valueOf(message.getTid()),
+				message.getAppName(), message.getTag(), message.getTime(), message.getMessage())) {
+			currentWriter.write('\t');
+			currentWriter.write(escape(field));
+		}
+		currentWriter.write('\n');
+		currentCount++;
+	}
+
+	private void endTest() throws IOException {
+		try {
+			currentWriter.close();
+			List<List<LogCatMessage>> testLogs = logs.get(currentTest);
+			if (testLogs == null) {
+				testLogs = new ArrayList<List<LogCatMessage>>();
+				logs.put(currentTest, testLogs);
+			}
+			testLogs.add(new SpilledLog(currentFile, currentCount));
+		} finally {
+			currentTest = null;
+			currentWriter = null;
+		}
+	}
+
+	/** Drop the log of the current test after a write failure. */
+	private void abortTest() {
+		IOUtils.closeQuietly(currentWriter);
+		currentTest = null;
+		currentWriter = null;
+	}
+
+	private static String escape(String value) {
+		if (value == null) {
+			return "";
+		}
+		return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	private static String unescape(String value) {
+		StringBuilder result = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length()) {
+				char next = value.charAt(++i);
+				result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+			} else {
+				result.append(c);
+			}
+		}
+		return result.toString();
+	}
+
+	/** Messages of a single test read from the file when needed, the messages may be dropped on low memory. */
+	private static final class SpilledLog extends AbstractList<LogCatMessage> {
+		private final File file;
+		private final int size;
+		private SoftReference<List<LogCatMessage>> messages = new SoftReference<List<LogCatMessage>>(null);
+
+		SpilledLog(File file, int size) {
+			this.file = file;
+			this.size = size;
+		}
+
+		@Override
+		public LogCatMessage get(int index) {
+			return load().get(index);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		private synchronized List<LogCatMessage> load() {
+			List<LogCatMessage> result = messages.get();
+			if (result != null) {
+				return result;
+			}
+			result = new ArrayList<LogCatMessage>(size);
+			try {
+				for (String line : Files.readLines(file, Charsets.UTF_8)) {
+					String[] fields = line.split("\t", -1);
+					result.add(new LogCatMessage(LogLevel.valueOf(fields[0]), unescape(fields[1]), unescape(fields[2]),
+							unescape(fields[3]), unescape(fields[4]), unescape(fields[5]), unescape(fields[6])));
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to read log " + file, e);
+			}
+			messages = new SoftReference<List<LogCatMessage>>(result);
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,117 @@
+package com.squareup.spoon;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Durations of the tests measured in the previous runs by device model and test.
+ * Only the latest samples are kept, so the statistics follow the changes of the tests.
+ */
+public final class TestDurations {
+	public static final String FILE = "test-durations.json";
+	/** Number of the latest samples kept for a test on a device model. */
+	private static final int SAMPLES = 20;
+
+	/** Durations in milliseconds by device model and test name ({@code className#methodName}), the latest last. */
+	private final Map<String, Map<String, List<Long>>> models = new TreeMap<String, Map<String, List<Long>>>();
+
+	/** Add a duration of the test on a device model. */
+	public synchronized void record(String model, String test, long millis) {
+		Map<String, List<Long>> tests = models.get(model);
+		if (tests == null) {
+			tests = new TreeMap<String, List<Long>>();
+			models.put(model, tests);
+		}
+		List<Long> samples = tests.get(test);
+		if (samples == null) {
+			samples = new ArrayList<Long>();
+			tests.put(test, samples);
+		}
+		samples.add(millis);
+		if (samples.size() > SAMPLES) {
+			samples.remove(0);
+		}
+	}
+
+	/** @return mean duration of the test on the device model in milliseconds or -1 if it was never measured */
+	public synchronized long getMean(String model, String test) {
+		List<Long> samples = getSamples(model, test);
+		if (samples.isEmpty()) {
+			return -1;
+		}
+		long sum = 0;
+		for (long sample : samples) {
+			sum += sample;
+		}
+		return sum / samples.size();
+	}
+
+	/** @return 90th percentile of the test duration on the device model in milliseconds or -1 if it was never measured */
+	public synchronized long getP90(String model, String test) {
+		List<Long> samples = getSamples(model, test);
+		if (samples.isEmpty()) {
+			return -1;
+		}
+		List<Long> sorted = new ArrayList<Long>(samples);
+		Collections.sort(sorted);
+		return sorted.get((int) Math.ceil(sorted.size() * 0.9) - 1);
+	}
+
+	/**
+	 * Estimate durations of the tests regardless of the device: the mean of the durations on every model.
+	 *
+	 * @return durations in milliseconds by test name, tests which were never measured are absent
+	 */
+	public synchronized Map<String, Long> getEstimates() {
+		Map<String, long[]> totals = new HashMap<String, long[]>();
+		for (Map.Entry<String, Map<String, List<Long>>> model : models.entrySet()) {
+			for (String test : model.getValue().keySet()) {
+				long[] total = totals.get(test);
+				if (total == null) {
+					total = new long[2];
+					totals.put(test, total);
+				}
+				total[0] += getMean(model.getKey(), test);
+				total[1]++;
+			}
+		}
+		Map<String, Long> estimates = new TreeMap<String, Long>();
+		for (Map.Entry<String, long[]> total : totals.entrySet()) {
+			estimates.put(total.getKey(), total.getValue()[0] / total.getValue()[1]);
+		}
+		return estimates;
+	}
+
+	private List<Long> getSamples(String model, String test) {
+		Map<String, List<Long>> tests = models.get(model);
+		List<Long> samples = tests != null ? tests.get(test) : null;
+		return samples != null ? samples : Collections.<Long>emptyList();
+	}
+
+	/** Read the durations, an empty store is returned if there is no file. */
+	public static TestDurations read(File file) {
+		if (!file.exists()) {
+			return new TestDurations();
+		}
+		try {
+			TestDurations durations = SpoonUtils.GSON.fromJson(FileUtils.readFileToString(file, "UTF-8"),
+					TestDurations.class);
+			return durations != null ? durations : new TestDurations();
+		} catch (Exception e) {
+			SpoonLogger.logInfo("Ignoring unreadable test durations %s: %s", file, e.getMessage());
+			return new TestDurations();
+		}
+	}
+
+	public synchronized void write(File file) {
+		try {
+			FileUtils.writeStringToFile(file, SpoonUtils.GSON.toJson(this), "UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to write test durations " + file, e);
+		}
+	}
+
+}
@@ -0,0 +1,236 @@
+package com.squareup.spoon.html;
+
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheFactory;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.squareup.spoon.DeviceResult;
+import com.squareup.spoon.DeviceTest;
+import com.squareup.spoon.DeviceTestResult;
+import com.squareup.spoon.SpoonSummary;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders the pages of the report concurrently, with the templates of {@link HtmlRenderer}.
+ * Lives in the package of the renderer to reach the scopes of its templates.
+ * <p>
+ * The report can also be updated while the tests are running: an update writes the pages of the results
+ * finished since the previous one, and the pages listing them, instead of the whole report.
+ * </p>
+ */
+public final class ParallelHtmlRenderer {
+	private final Gson gson;
+	private final File output;
+	private final ExecutorService executor;
+	private final Mustache indexTemplate;
+	private final Mustache deviceTemplate;
+	private final Mustache testTemplate;
+	private final Mustache logTemplate;
+	/** Tests whose pages were written by the updates, by device serial. */
+	private final Map<String, Set<DeviceTest>> updated = new HashMap<String, Set<DeviceTest>>();
+	private boolean assetsCopied;
+
+	/**
+	 * @param output report directory
+	 * @param threads number of pages rendered at the same time
+	 */
+	public ParallelHtmlRenderer(Gson gson, File output, int threads) {
+		this.gson = gson;
+		this.output = output;
+		executor = Executors.newFixedThreadPool(Math.max(1, threads),
+				new ThreadFactoryBuilder().setNameFormat("spoon-render-%d").setDaemon(true).build());
+		MustacheFactory mustacheFactory = new DefaultMustacheFactory();
+		indexTemplate = mustacheFactory.compile("page/index.html");
+		deviceTemplate = mustacheFactory.compile("page/device.html");
+		testTemplate = mustacheFactory.compile("page/test.html");
+		logTemplate = mustacheFactory.compile("page/log.html");
+	}
+
+	/** Render the whole report. */
+	public synchronized void render(SpoonSummary summary) {
+		copyStaticAssets(summary);
+		List<Callable<Void>> pages = new ArrayList<Callable<Void>>();
+		Set<DeviceTest> tests = new LinkedHashSet<DeviceTest>();
+		for (Map.Entry<String, DeviceResult> entry : summary.getResults().entrySet()) {
+			String serial = entry.getKey();
+			pages.add(devicePage(serial, entry.getValue()));
+			for (Map.Entry<DeviceTest, DeviceTestResult> result : entry.getValue().getTestResults().entrySet()) {
+				pages.add(logPage(serial, result.getKey(), result.getValue()));
+				tests.add(result.getKey());
+			}
+		}
+		for (DeviceTest test : tests) {
+			pages.add(testPage(test, summary));
+		}
+		pages.add(indexPage(summary));
+		pages.add(resultJson(summary));
+		renderAll(pages);
+	}
+
+	/**
+	 * Render the pages of the results which were not in the previous updates,
+	 * the pages of their devices and tests, and the index.
+	 * Nothing is written if there are no new results.
+	 */
+	public synchronized void update(SpoonSummary summary) {
+		List<Callable<Void>> pages = new ArrayList<Callable<Void>>();
+		Set<DeviceTest> tests = new LinkedHashSet<DeviceTest>();
+		for (Map.Entry<String, DeviceResult> entry : summary.getResults().entrySet()) {
+			String serial = entry.getKey();
+			Set<DeviceTest> done = updated.get(serial);
+			if (done == null) {
+				done = new HashSet<DeviceTest>();
+				updated.put(serial, done);
+			}
+			boolean changed = false;
+			for (Map.Entry<DeviceTest, DeviceTestResult> result : entry.getValue().getTestResults().entrySet()) {
+				if (done.add(result.getKey())) {
+					pages.add(logPage(serial, result.getKey(), result.getValue()));
+					tests.add(result.getKey());
+					changed = true;
+				}
+			}
+			if (changed) {
+				pages.add(devicePage(serial, entry.getValue()));
+			}
+		}
+		if (pages.isEmpty()) {
+			return;
+		}
+		copyStaticAssets(summary);
+		// Results of the other devices are shown on the same test page.
+		for (DeviceTest test : tests) {
+			pages.add(testPage(test, summary));
+		}
+		pages.add(indexPage(summary));
+		pages.add(resultJson(summary));
+		renderAll(pages);
+	}
+
+	/** Stop the rendering threads. */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Static assets are copied by {@link HtmlRenderer} rendering a report without results,
+	 * its index and result.json are overwritten afterwards.
+	 */
+	private void copyStaticAssets(SpoonSummary summary) {
+		if (assetsCopied) {
+			return;
+		}
+		SpoonSummary.Builder empty = new SpoonSummary.Builder().setTitle(summary.getTitle()).start();
+		if (summary.getTestSize() != null) {
+			empty.setTestSize(summary.getTestSize());
+		}
+		new HtmlRenderer(empty.end().build(), gson, output).render();
+		assetsCopied = true;
+	}
+
+	private Callable<Void> indexPage(final SpoonSummary summary) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() {
+				renderMustacheToFile(indexTemplate, HtmlIndex.from(summary), new File(output, "index.html"));
+				return null;
+			}
+		};
+	}
+
+	private Callable<Void> devicePage(final String serial, final DeviceResult result) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() {
+				renderMustacheToFile(deviceTemplate, HtmlDevice.from(serial, result, output),
+						FileUtils.getFile(output, "device", serial + ".html"));
+				return null;
+			}
+		};
+	}
+
+	private Callable<Void> testPage(final DeviceTest test, final SpoonSummary summary) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() {
+				renderMustacheToFile(testTemplate, HtmlTest.from(test, summary, output),
+						FileUtils.getFile(output, "test", test.getClassName(), test.getMethodName() + ".html"));
+				return null;
+			}
+		};
+	}
+
+	private Callable<Void> logPage(final String serial, final DeviceTest test, final DeviceTestResult result) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() {
+				renderMustacheToFile(logTemplate, HtmlLog.from(serial, test, result),
+						FileUtils.getFile(output, "logs", serial, test.getClassName(), test.getMethodName() + ".html"));
+				return null;
+			}
+		};
+	}
+
+	private Callable<Void> resultJson(final SpoonSummary summary) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				Writer writer = new FileWriter(new File(output, "result.json"));
+				try {
+					gson.toJson(summary, writer);
+				} finally {
+					IOUtils.closeQuietly(writer);
+				}
+				return null;
+			}
+		};
+	}
+
+	/** Render the pages concurrently and wait for all of them. */
+	private void renderAll(List<Callable<Void>> pages) {
+		List<Future<Void>> futures;
+		try {
+			futures = executor.invokeAll(pages);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while rendering the report", e);
+		}
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while rendering the report", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Unable to render the report", e.getCause());
+			}
+		}
+	}
+
+	private static void renderMustacheToFile(Mustache mustache, Object scope, File file) {
+		Writer writer = null;
+		try {
+			file.getParentFile().mkdirs();
+			writer = new FileWriter(file);
+			mustache.execute(writer, scope);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to write " + file, e);
+		} finally {
+			IOUtils.closeQuietly(writer);
+		}
+	}
+
+}
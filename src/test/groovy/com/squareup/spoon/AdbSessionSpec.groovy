@@ -0,0 +1,93 @@
+package com.squareup.spoon
+
+import com.android.ddmlib.IDevice
+import spock.lang.Specification
+
+/**
+ * Spec for AdbSession.
+ */
+class AdbSessionSpec extends Specification {
+
+  /** Bridge which can be terminated by the test. */
+  private static class FakeConnection implements AdbSession.Connection {
+    boolean alive = true
+    Collection<IDevice> devices
+  }
+
+  /** Starts fake bridges with the devices attached at the moment. */
+  private static class FakeConnector implements AdbSession.Connector {
+    final List<FakeConnection> started = []
+    List<IDevice> attached = []
+
+    @Override
+    AdbSession.Connection connect(String adbPath) {
+      def connection = new FakeConnection(devices: new ArrayList<IDevice>(attached))
+      started << connection
+      return connection
+    }
+  }
+
+  private final FakeConnector connector = new FakeConnector()
+
+  private final AdbSession session = new AdbSession("adb", connector)
+
+  private static IDevice device(String serial) {
+    return [getSerialNumber: { serial }] as IDevice
+  }
+
+  def "should start the bridge once for the consecutive tasks"() {
+    given:
+    def a = device("a")
+    connector.attached = [a]
+
+    when:
+    def serials = session.serials
+    def found = session.getDevice("a")
+
+    then:
+    serials == ["a"] as Set
+    found.is(a)
+    connector.started.size() == 1
+  }
+
+  def "should start the bridge again after it was terminated"() {
+    given:
+    connector.attached = [device("a")]
+    session.serials
+
+    when:
+    connector.started[0].alive = false
+    def b = device("b")
+    connector.attached = [b]
+    def serials = session.serials
+
+    then:
+    connector.started.size() == 2
+    serials == ["b"] as Set
+    session.getDevice("b").is(b)
+  }
+
+  def "should follow the devices of the running bridge"() {
+    given:
+    def a = device("a")
+    connector.attached = [a]
+    session.serials
+
+    when:
+    session.deviceConnected(device("c"))
+    session.deviceDisconnected(a)
+
+    then:
+    session.serials == ["c"] as Set
+    connector.started.size() == 1
+  }
+
+  def "should reject an unknown device"() {
+    when:
+    session.getDevice("x")
+
+    then:
+    thrown(IllegalArgumentException)
+  }
+
+}
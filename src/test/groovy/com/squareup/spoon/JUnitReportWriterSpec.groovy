@@ -0,0 +1,126 @@
+package com.squareup.spoon
+
+import com.android.ddmlib.testrunner.TestIdentifier
+import spock.lang.Specification
+
+/**
+ * Spec for JUnitReportWriter.
+ */
+class JUnitReportWriterSpec extends Specification {
+
+  private File dir
+
+  def setup() {
+    dir = File.createTempFile("junit", "reports")
+    dir.delete()
+    dir.mkdirs()
+  }
+
+  def cleanup() {
+    dir.deleteDir()
+  }
+
+  private static void run(JUnitReportWriter writer, String name, Closure outcome = {}) {
+    def test = new TestIdentifier("com.example.Test", name)
+    writer.testStarted(test)
+    outcome(test)
+    writer.testEnded(test, [:])
+  }
+
+  def "should assemble the report with the aggregate counts"() {
+    given:
+    def report = new File(dir, "serial.xml")
+    def writer = new JUnitReportWriter(report, "serial")
+
+    when:
+    writer.testRunStarted("run", 4)
+    run(writer, "passed")
+    run(writer, "failed") { writer.testFailed(it, "junit.framework.AssertionFailedError: expected") }
+    run(writer, "broken") { writer.testFailed(it, "java.lang.NullPointerException") }
+    run(writer, "ignored") { writer.testIgnored(it) }
+    writer.close()
+    def suite = new XmlSlurper().parse(report)
+
+    then:
+    suite.@name == "serial"
+    suite.@tests == "4"
+    suite.@failures == "1"
+    suite.@errors == "1"
+    suite.@skipped == "1"
+    suite.testcase*.@name*.toString() == ["passed", "failed", "broken", "ignored"]
+    !new File(dir, "serial.xml" + JUnitReportWriter.PART_SUFFIX).exists()
+  }
+
+  def "should escape the failure keeping every test case on one line"() {
+    given:
+    def report = new File(dir, "serial.xml")
+    def writer = new JUnitReportWriter(report, "serial")
+    def trace = "java.lang.AssertionError: <a & \"b\">\n\tat com.example.Test.failed(Test.java:1)"
+
+    when:
+    writer.testRunStarted("run", 1)
+    run(writer, "failed") { writer.testFailed(it, trace) }
+    writer.close()
+
+    then:
+    report.readLines("UTF-8").count { it.startsWith("<testcase ") } == 1
+    new XmlSlurper().parse(report).testcase.failure.text() == trace
+  }
+
+  def "should report an error preventing the tests from running as a test case"() {
+    given:
+    def report = new File(dir, "serial.xml")
+    def writer = new JUnitReportWriter(report, "serial")
+
+    when:
+    writer.addError("com.example.test", "install", "Unable to install application APK.")
+    writer.close()
+    def suite = new XmlSlurper().parse(report)
+
+    then:
+    suite.@tests == "1"
+    suite.@errors == "1"
+    suite.testcase.@name == "install"
+    suite.testcase.error.text() == "Unable to install application APK."
+  }
+
+  def "should recover the report dropping a partially written test case"() {
+    given:
+    def report = new File(dir, "serial.xml")
+    new File(dir, "serial.xml" + JUnitReportWriter.PART_SUFFIX).setText(
+        '<testcase name="a" classname="com.example.Test" time="1.500" />\n' +
+        '<testcase name="b" classname="com.example.Test" time="0.500"><failure>trace</failure></testcase>\n' +
+        '<testcase name="c" classname="com.exa', "UTF-8")
+
+    when:
+    def recovered = JUnitReportWriter.recoverAll(dir)
+    def suite = new XmlSlurper().parse(new File(new File(dir, JUnitReportWriter.INTERRUPTED_DIR), "serial.xml"))
+
+    then:
+    recovered == 1
+    suite.@name == "serial"
+    suite.@tests == "2"
+    suite.@failures == "1"
+    suite.@time == "2.000"
+    !report.exists()
+  }
+
+  def "should keep the part file of an interrupted run when a new run starts"() {
+    given:
+    def report = new File(dir, "serial.xml")
+    new File(dir, "serial.xml" + JUnitReportWriter.PART_SUFFIX).setText(
+        '<testcase name="old" classname="com.example.Test" time="1.000" />\n', "UTF-8")
+    def writer = new JUnitReportWriter(report, "serial")
+
+    when:
+    writer.testRunStarted("run", 1)
+    run(writer, "new")
+    writer.close()
+
+    then:
+    new XmlSlurper().parse(report).testcase*.@name*.toString() == ["new"]
+    new XmlSlurper().parse(new File(new File(dir, JUnitReportWriter.INTERRUPTED_DIR), "serial.xml"))
+        .testcase*.@name*.toString() == ["old"]
+  }
+
+}
@@ -0,0 +1,58 @@
+package com.squareup.spoon
+
+import com.android.ddmlib.RawImage
+import spock.lang.Specification
+import spock.lang.Unroll
+
+/**
+ * Spec for RawImageConverter.
+ */
+class RawImageConverterSpec extends Specification {
+
+  private static RawImage rawImage(int bpp, List<Integer> offsets, List<Integer> lengths) {
+    RawImage image = new RawImage()
+    image.width = 7
+    image.height = 5
+    image.bpp = bpp
+    image.size = image.width * image.height * (bpp >> 3)
+    image.data = new byte[image.size]
+    new Random(1).nextBytes(image.data)
+    (image.red_offset, image.green_offset, image.blue_offset, image.alpha_offset) = offsets
+    (image.red_length, image.green_length, image.blue_length, image.alpha_length) = lengths
+    return image
+  }
+
+  @Unroll
+  def "should produce the same pixels as RawImage.getARGB for #layout"() {
+    given:
+    RawImage raw = rawImage(bpp, offsets, lengths)
+
+    when:
+    def image = new RawImageConverter().convert(raw)
+
+    then:
+    (0..<raw.height).every { int y ->
+      (0..<raw.width).every { int x ->
+        image.getRGB(x, y) == (raw.getARGB((y * raw.width + x) * (bpp >> 3)) | 0xff000000)
+      }
+    }
+
+    where:
+    layout      | bpp | offsets          | lengths
+    "RGBA_8888" | 32  | [0, 8, 16, 24]   | [8, 8, 8, 8]
+    "BGRA_8888" | 32  | [16, 8, 0, 24]   | [8, 8, 8, 8]
+    "RGBX_8888" | 32  | [0, 8, 16, 0]    | [8, 8, 8, 0]
+    "RGB_565"   | 16  | [11, 5, 0, 0]    | [5, 6, 5, 0]
+    "BGR_565"   | 16  | [0, 5, 11, 0]    | [5, 6, 5, 0]
+  }
+
+  def "should reuse the image for frames of the same size"() {
+    given:
+    def converter = new RawImageConverter()
+    def raw = rawImage(32, [0, 8, 16, 24], [8, 8, 8, 8])
+
+    expect:
+    converter.convert(raw).is(converter.convert(raw))
+  }
+
+}
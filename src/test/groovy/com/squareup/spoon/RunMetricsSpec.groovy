@@ -0,0 +1,67 @@
+package com.squareup.spoon
+
+import groovy.json.JsonSlurper
+import spock.lang.Specification
+
+/**
+ * Spec for RunMetrics.
+ */
+class RunMetricsSpec extends Specification {
+
+  def "should take the nearest rank percentiles"() {
+    when:
+    def stats = new RunMetrics.Stats((1L..100L).toList().reverse())
+
+    then:
+    stats.count == 100
+    stats.total == 5050
+    stats.mean == 50
+    stats.p50 == 50
+    stats.p90 == 90
+    stats.p99 == 99
+    stats.max == 100
+  }
+
+  def "should take the only sample as every percentile"() {
+    when:
+    def stats = new RunMetrics.Stats([7L])
+
+    then:
+    [stats.p50, stats.p90, stats.p99, stats.max] == [7L, 7L, 7L, 7L]
+  }
+
+  def "should report zeros without samples"() {
+    when:
+    def stats = new RunMetrics.Stats([])
+
+    then:
+    [stats.count, stats.total, stats.mean, stats.p50, stats.p90, stats.p99, stats.max] == [0, 0, 0, 0, 0, 0, 0]
+  }
+
+  def "should write the totals and the devices of every phase"() {
+    given:
+    def metrics = new RunMetrics()
+    metrics.record(RunMetrics.INSTALL, "b", 30)
+    metrics.record(RunMetrics.INSTALL, "a", 10)
+    metrics.record(RunMetrics.INSTALL, "a", 20)
+    metrics.record(RunMetrics.SORT, null, 5)
+    def file = File.createTempFile("metrics", ".json")
+
+    when:
+    metrics.write(file)
+    def json = new JsonSlurper().parse(file)
+
+    then:
+    json.timestamp > 0
+    json.phases.keySet() as List == [RunMetrics.INSTALL, RunMetrics.SORT]
+    json.phases[RunMetrics.INSTALL].total.count == 3
+    json.phases[RunMetrics.INSTALL].total.total == 60
+    json.phases[RunMetrics.INSTALL].devices.keySet() as List == ["a", "b"]
+    json.phases[RunMetrics.INSTALL].devices.a.max == 20
+    json.phases[RunMetrics.SORT].devices.keySet() as List == ["all"]
+
+    cleanup:
+    file.delete()
+  }
+
+}
@@ -0,0 +1,81 @@
+package com.stanfy.spoon.gradle
+
+import spock.lang.Specification
+
+/**
+ * Spec for DevicePool.
+ */
+class DevicePoolSpec extends Specification {
+
+  def "should lease all the devices when the tasks are not run at the same time"() {
+    given:
+    def pool = new DevicePool(false)
+    pool.pendingTasks = [":a", ":b"]
+
+    expect:
+    pool.lease(["a", "b", "c", "d"]) == ["a", "b", "c", "d"] as Set
+  }
+
+  def "should split the devices between the projects with pending tasks"() {
+    given:
+    def pool = new DevicePool(true)
+    pool.pendingTasks = [":a", ":b"]
+
+    when:
+    def first = pool.lease(["a", "b", "c", "d"])
+    def second = pool.lease(["a", "b", "c", "d"])
+
+    then:
+    first == ["a", "b"] as Set
+    second == ["c", "d"] as Set
+  }
+
+  def "should lease all the devices to the variants of a single project"() {
+    given:
+    def pool = new DevicePool(true)
+    pool.pendingTasks = [":app", ":app", ":app"]
+
+    when:
+    def debug = pool.lease(["a", "b", "c", "d"])
+    pool.release(debug)
+    pool.taskFinished(":app")
+    def release = pool.lease(["a", "b", "c", "d"])
+
+    then:
+    debug == ["a", "b", "c", "d"] as Set
+    release == ["a", "b", "c", "d"] as Set
+  }
+
+  def "should give the remaining project all the devices once the other projects finished"() {
+    given:
+    def pool = new DevicePool(true)
+    pool.pendingTasks = [":app", ":app", ":library"]
+
+    when:
+    def first = pool.lease(["a", "b", "c", "d"])
+    pool.release(first)
+    pool.taskFinished(":library")
+    def second = pool.lease(["a", "b", "c", "d"])
+
+    then:
+    first == ["a", "b"] as Set
+    second == ["a", "b", "c", "d"] as Set
+  }
+
+  def "should wait for a released device"() {
+    given:
+    def pool = new DevicePool(true)
+    def first = pool.lease(["a"])
+
+    when:
+    Thread.start {
+      sleep(100)
+      pool.release(first)
+    }
+    def second = pool.lease(["a"])
+
+    then:
+    second == ["a"] as Set
+  }
+
+}
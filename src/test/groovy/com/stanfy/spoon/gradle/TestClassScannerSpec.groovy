@@ -0,0 +1,81 @@
+package com.stanfy.spoon.gradle
+
+import android.test.InstrumentationTestCase
+import javassist.ClassPool
+import javassist.CtClass
+import javassist.CtNewMethod
+import javassist.Modifier
+import javassist.bytecode.AnnotationsAttribute
+import javassist.bytecode.annotation.Annotation
+import org.junit.Test
+import spock.lang.Specification
+
+/**
+ * Spec for TestClassScanner.
+ */
+class TestClassScannerSpec extends Specification {
+
+  File classesDir
+
+  File indexFile
+
+  ClassPool pool
+
+  def setup() {
+    File root = File.createTempFile("spoon", "scanner")
+    root.delete()
+    classesDir = new File(root, "classes")
+    indexFile = new File(root, "index.json")
+    pool = new ClassPool(true)
+    pool.insertClassPath(classesDir.absolutePath)
+    pool.appendClassPath(new javassist.ClassClassPath(InstrumentationTestCase))
+  }
+
+  private CtClass writeClass(String name, String superclass, boolean isAbstract = false, List<String> tests = []) {
+    CtClass clazz = pool.makeClass(name, pool.get(superclass))
+    if (isAbstract) {
+      clazz.modifiers = clazz.modifiers | Modifier.ABSTRACT
+    }
+    tests.each { String test ->
+      def method = CtNewMethod.make("public void $test() {}", clazz)
+      def attribute = new AnnotationsAttribute(clazz.classFile.constPool, AnnotationsAttribute.visibleTag)
+      attribute.addAnnotation(new Annotation(Test.name, clazz.classFile.constPool))
+      method.methodInfo.addAttribute(attribute)
+      clazz.addMethod(method)
+    }
+    clazz.writeFile(classesDir.absolutePath)
+    clazz.defrost()
+    return clazz
+  }
+
+  def "should find non-abstract subclasses of InstrumentationTestCase"() {
+    given:
+    writeClass("com.example.BaseTest", InstrumentationTestCase.name, true, ["testBase"])
+    writeClass("com.example.FooTest", "com.example.BaseTest", false, ["testFoo"])
+    writeClass("com.example.Helper", Object.name)
+
+    when:
+    def tests = new TestClassScanner(classesDir, indexFile).scan()
+
+    then:
+    tests*.name == ["com.example.FooTest"]
+    tests[0].methods*.name.sort() == ["testBase", "testFoo"]
+  }
+
+  def "should parse only changed classes on the next scan"() {
+    given:
+    writeClass("com.example.FooTest", InstrumentationTestCase.name, false, ["testFoo"])
+    writeClass("com.example.BarTest", InstrumentationTestCase.name, false, ["testBar"])
+    new TestClassScanner(classesDir, indexFile).scan()
+
+    when:
+    def scanner = new TestClassScanner(classesDir, indexFile)
+    def tests = scanner.scan()
+
+    then:
+    scanner.parsedFiles == 0
+    tests*.name.sort() == ["com.example.BarTest", "com.example.FooTest"]
+    tests.find { it.name == "com.example.FooTest" }.methods*.name == ["testFoo"]
+  }
+
+}
@@ -0,0 +1,128 @@
+package com.stanfy.spoon.gradle
+
+import com.squareup.spoon.DeviceProvider
+import com.squareup.spoon.IncrementalSpoonRunner
+import com.stanfy.spoon.annotations.Action
+import spock.lang.Specification
+
+/**
+ * Spec for TestRetrier.
+ */
+class TestRetrierSpec extends Specification {
+
+  private File dir
+
+  private IncrementalSpoonRunner runner
+
+  /** Retries run by the retrier as test@serial. */
+  private final List<String> runs = []
+
+  def setup() {
+    dir = File.createTempFile("retrier", "output")
+    dir.delete()
+    dir.mkdirs()
+    def apk = new File(dir, "test.apk")
+    apk.createNewFile()
+    runner = new IncrementalSpoonRunner.Builder()
+        .setApplicationApk(apk)
+        .setInstrumentationApk(apk)
+        .setOutputDirectory(dir)
+        .setDeviceProvider(Mock(DeviceProvider))
+        .addDevice("a")
+        .addDevice("b")
+        .addDevice("c")
+        .build()
+  }
+
+  def cleanup() {
+    dir.deleteDir()
+  }
+
+  private static TestStep step(String name, Action before = Action.None) {
+    return new TestStep("com.example.Test", name, before, Action.None, false, null)
+  }
+
+  /**
+   * @param failed tests failed in the main pass by device serial
+   * @param passes whether a retry of the test passes on the device
+   */
+  private void failed(Map<String, List<String>> failed, Closure<Boolean> passes = { test, serial -> false }) {
+    runner.metaClass.getFailedTests = { -> failed }
+    runner.metaClass.retryTest = { String serial, String failedSerial, String className, String methodName,
+                                   int attempt ->
+      String test = "$className#$methodName"
+      synchronized (runs) {
+        runs << "$test@$serial".toString()
+      }
+      return passes(test, serial)
+    }
+  }
+
+  def "should retry a test on the devices it has not been run on"() {
+    given:
+    failed(a: ["com.example.Test#x"])
+
+    when:
+    new TestRetrier(runner, "com.example", [step("x")], 2).run()
+
+    then:
+    runs == ["com.example.Test#x@b", "com.example.Test#x@c"]
+  }
+
+  def "should retry a test on the device it failed on when there is no other device"() {
+    given:
+    failed(a: ["com.example.Test#x"])
+
+    when:
+    new TestRetrier(runner, "com.example", [step("x")], 3).run()
+
+    then:
+    runs == ["com.example.Test#x@b", "com.example.Test#x@c", "com.example.Test#x@a"]
+  }
+
+  def "should run the retries of a test failed on several devices on different devices"() {
+    given:
+    failed(a: ["com.example.Test#x"], b: ["com.example.Test#x"])
+
+    when:
+    new TestRetrier(runner, "com.example", [step("x")], 1).run()
+
+    then:
+    runs.sort() == ["com.example.Test#x@a", "com.example.Test#x@b"]
+  }
+
+  def "should not retry a test again once it passed"() {
+    given:
+    failed(a: ["com.example.Test#x", "com.example.Test#y"]) { test, serial -> test == "com.example.Test#x" }
+
+    when:
+    new TestRetrier(runner, "com.example", [step("x"), step("y")], 3).run()
+
+    then:
+    runs.count { it.startsWith("com.example.Test#x@") } == 1
+    runs.count { it.startsWith("com.example.Test#y@") } == 3
+  }
+
+  def "should forgive a test which passed on another device"() {
+    given:
+    failed(a: ["com.example.Test#x"]) { test, serial -> serial == "c" }
+
+    when:
+    new TestRetrier(runner, "com.example", [step("x")], 3).run()
+
+    then:
+    runs == ["com.example.Test#x@b", "com.example.Test#x@c"]
+  }
+
+  def "should not retry a test which needs a backup restored"() {
+    given:
+    failed(a: ["com.example.Test#x"])
+
+    when:
+    new TestRetrier(runner, "com.example", [step("x", Action.RestoreBackup)], 2).run()
+
+    then:
+    runs.empty
+  }
+
+}
@@ -0,0 +1,64 @@
+package com.stanfy.spoon.gradle
+
+import com.stanfy.spoon.annotations.Action
+import spock.lang.Specification
+
+/**
+ * Spec for TestScheduler.
+ */
+class TestSchedulerSpec extends Specification {
+
+  private static TestStep step(String name, Action before, Action after) {
+    return new TestStep("com.example.Test", name, before, after, false, null)
+  }
+
+  private final TestScheduler scheduler = new TestScheduler([(Action.ForceStop): 100L, (Action.ClearData): 1000L])
+
+  def "cost should skip actions already performed after the previous test"() {
+    expect:
+    scheduler.cost([step("a", Action.None, Action.ClearData), step("b", Action.ClearData, Action.None)]) == 1000
+    scheduler.cost([step("b", Action.ClearData, Action.None), step("a", Action.None, Action.ClearData)]) == 2000
+    scheduler.cost([step("a", Action.None, Action.ClearData), step("b", Action.ForceStop, Action.None)]) == 1000
+  }
+
+  def "order should put the tests requiring an action after the tests performing it"() {
+    given:
+    def steps = [
+        step("clearBefore", Action.ClearData, Action.None),
+        step("stopBefore", Action.ForceStop, Action.None),
+        step("nothing", Action.None, Action.None),
+        step("clearAfter", Action.None, Action.ClearData),
+        step("stopAfter", Action.None, Action.ForceStop)
+    ]
+
+    when:
+    def ordered = scheduler.order(steps)
+
+    then:
+    ordered*.methodName == ["clearAfter", "clearBefore", "stopAfter", "stopBefore", "nothing"]
+    scheduler.cost(ordered) == 1100
+    scheduler.cost(steps) == 2200
+  }
+
+  def "order should continue with the class of the previous step"() {
+    given:
+    def steps = [
+        new TestStep("com.example.A", "a1", Action.None, Action.None, false, null),
+        new TestStep("com.example.B", "b1", Action.None, Action.None, false, null),
+        new TestStep("com.example.A", "a2", Action.None, Action.None, false, null),
+        new TestStep("com.example.B", "b2", Action.ForceStop, Action.None, false, null)
+    ]
+
+    expect:
+    scheduler.order(steps)*.methodName == ["a1", "a2", "b1", "b2"]
+  }
+
+  def "schedule should never return a more expensive order"() {
+    given:
+    def steps = [step("clearAfter", Action.None, Action.ClearData), step("clearBefore", Action.ClearData, Action.None)]
+
+    expect:
+    scheduler.cost(scheduler.schedule(steps)) == scheduler.cost(steps)
+  }
+
+}
@@ -0,0 +1,84 @@
+package com.stanfy.spoon.gradle
+
+import com.stanfy.spoon.annotations.Action
+import spock.lang.Specification
+
+/**
+ * Spec for TestSharder.
+ */
+class TestSharderSpec extends Specification {
+
+  private static List<TestStep> steps(int classes, int methodsPerClass) {
+    return (0..<classes).collectMany { int c ->
+      (0..<methodsPerClass).collect { int m ->
+        new TestStep("com.example.Test$c", "test$m", Action.None, Action.None, false, null)
+      }
+    }
+  }
+
+  def "count mode should split consecutive steps evenly"() {
+    when:
+    def shards = TestSharder.split(steps(6, 2), 3, TestSharder.COUNT)
+
+    then:
+    shards*.size() == [4, 4, 4]
+    shards.flatten()*.toString() == steps(6, 2)*.toString()
+  }
+
+  def "count mode should not split a class"() {
+    when:
+    def shards = TestSharder.split(steps(5, 3), 4, TestSharder.COUNT)
+
+    then:
+    shards*.size() == [3, 6, 3, 3]
+    shards.flatten()*.toString() == steps(5, 3)*.toString()
+    shards.collect { it*.className as Set }.sum { it.size() } == 5
+  }
+
+  def "count mode should fill the first shards when there are fewer classes than shards"() {
+    expect:
+    TestSharder.split(steps(1, 3), 4, TestSharder.COUNT)*.size() == [3, 0, 0, 0]
+  }
+
+  def "hash mode should keep a class on one shard"() {
+    when:
+    def shards = TestSharder.split(steps(20, 3), 4, TestSharder.HASH)
+
+    then:
+    shards.size() == 4
+    shards.sum { it.size() } == 60
+    shards.collect { it*.className as Set }.inject([] as Set) { Set seen, Set names ->
+      assert !seen.intersect(names)
+      seen + names
+    }.size() == 20
+  }
+
+  def "hash mode should be stable"() {
+    expect:
+    TestSharder.split(steps(10, 2), 3, TestSharder.HASH)*.collect { it.toString() } ==
+        TestSharder.split(steps(10, 2), 3, TestSharder.HASH)*.collect { it.toString() }
+  }
+
+  def "duration mode should balance measured durations keeping the order"() {
+    given:
+    def durations = ["com.example.Test0#test0": 100L, "com.example.Test1#test0": 10L, "com.example.Test2#test0": 10L]
+
+    when:
+    def shards = TestSharder.split(steps(4, 1), 2, TestSharder.DURATION, durations)
+
+    then:
+    shards*.collect { it.className } == [
+        ["com.example.Test0"],
+        ["com.example.Test1", "com.example.Test2", "com.example.Test3"]
+    ]
+  }
+
+  def "should reject unknown mode"() {
+    when:
+    TestSharder.split(steps(1, 1), 2, "random")
+
+    then:
+    thrown(IllegalArgumentException)
+  }
+
+}